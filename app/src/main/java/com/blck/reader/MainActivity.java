@@ -3,6 +3,7 @@ package com.blck.reader;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.UriPermission;
 import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
@@ -12,8 +13,7 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.artifex.mupdf.viewer.DocumentActivity;
-
-import java.io.InputStream;
+import com.artifex.mupdf.viewer.StartupTrace;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -23,6 +23,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.begin("launch");
         if (!isInit)
             isInit = true;
         else
@@ -93,12 +94,13 @@ public class MainActivity extends AppCompatActivity {
     public boolean isUriValid(String uri) {
         if (uri == null)
             return false;
-        // doesnt exist, IOexception, permission exception = invalid
+        // only check the grant is still held; DocumentActivity opens the
+        // document in the background and reports it if it is gone
+        Uri parsed = Uri.parse(uri);
         ContentResolver cr = getContentResolver();
-        try (InputStream ignored = cr.openInputStream(Uri.parse(uri))) {
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        for (UriPermission permission : cr.getPersistedUriPermissions())
+            if (permission.getUri().equals(parsed) && permission.isReadPermission())
+                return true;
+        return false;
     }
 }
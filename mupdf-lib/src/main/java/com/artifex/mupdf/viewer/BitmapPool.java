@@ -0,0 +1,118 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+
+/* Session-wide pool of page and patch bitmaps. Released bitmaps are kept up to
+ * a byte budget and handed out again for the same size and config, or
+ * reconfigured in place when a larger free bitmap can hold the request. */
+public class BitmapPool {
+    private final LinkedList<Bitmap> free = new LinkedList<>(); // oldest first
+    private long maxBytes;
+    private long freeBytes;
+
+    private int allocations;
+    private int reuses;
+    private int reconfigures;
+    private int discards;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        Bitmap best = null;
+        long needed = (long) width * height * bytesPerPixel(config);
+        for (Bitmap bm : free) {
+            if (bm.getWidth() == width && bm.getHeight() == height && bm.getConfig() == config) {
+                best = bm;
+                break;
+            }
+            if (bm.isMutable() && bm.getAllocationByteCount() >= needed
+                    && (best == null || bm.getAllocationByteCount() < best.getAllocationByteCount()))
+                best = bm;
+        }
+
+        if (best != null) {
+            free.remove(best);
+            freeBytes -= best.getAllocationByteCount();
+            if (best.getWidth() == width && best.getHeight() == height && best.getConfig() == config) {
+                ++reuses;
+                return best;
+            }
+            try {
+                best.reconfigure(width, height, config);
+                ++reconfigures;
+                return best;
+            } catch (IllegalArgumentException e) {
+                best.recycle();
+                ++discards;
+            }
+        }
+
+        ++allocations;
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    public synchronized void release(Bitmap bm) {
+        if (bm == null || bm.isRecycled() || free.contains(bm))
+            return;
+        if (!bm.isMutable() || bm.getAllocationByteCount() > maxBytes) {
+            bm.recycle();
+            ++discards;
+            return;
+        }
+        free.add(bm);
+        freeBytes += bm.getAllocationByteCount();
+        trim();
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Bitmap> it = free.iterator();
+        while (freeBytes > maxBytes && it.hasNext()) {
+            Bitmap bm = it.next();
+            it.remove();
+            freeBytes -= bm.getAllocationByteCount();
+            bm.recycle();
+            ++discards;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bm : free)
+            bm.recycle();
+        free.clear();
+        freeBytes = 0;
+    }
+
+    public synchronized int getAllocationCount() {
+        return allocations;
+    }
+
+    public synchronized int getReuseCount() {
+        return reuses + reconfigures;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return switch (config) {
+            case ALPHA_8 -> 1;
+            case RGB_565, ARGB_4444 -> 2;
+            case RGBA_F16 -> 8;
+            default -> 4;
+        };
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "BitmapPool[allocated=%d reused=%d reconfigured=%d discarded=%d free=%d/%dKB]",
+                allocations, reuses, reconfigures, discards, free.size(), freeBytes / 1024);
+    }
+}
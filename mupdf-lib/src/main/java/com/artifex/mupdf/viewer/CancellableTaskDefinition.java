@@ -5,5 +5,7 @@ public interface CancellableTaskDefinition<Params, Result> {
 
     void doCancel();
 
+    boolean isCancelled();
+
     void doCleanup();
 }
@@ -0,0 +1,232 @@
+package com.artifex.mupdf.viewer;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/* Random access over a content uri that can only be read front to back.
+ * The content is read in fixed size blocks kept in an LRU, so fitz's seeks
+ * back to the xref and to objects it has seen before are served from
+ * memory. Misses read ahead a window of blocks in large reads, so providers
+ * that go through IPC see few transactions; the window grows while reads
+ * are sequential and drops back to one block on random access. Blocks
+ * evicted from memory can be spilled to a file in the app cache, so the
+ * stream never has to be reopened for them either. Shared by every
+ * ContentInputStream on the same document. */
+public class ContentBlockCache {
+    private static final String APP = "MuPDF";
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCKS = 32;
+    /* Gaps up to this many blocks are read and cached rather than skipped. */
+    private static final int READ_THROUGH_BLOCKS = 4;
+    private static final int MAX_WINDOW = 16;
+    private static final String SPILL_PREFIX = "content";
+    private static final String SPILL_SUFFIX = ".blocks";
+    private static boolean swept;
+
+    private final ContentResolver cr;
+    private final Uri uri;
+    private final File spillFile;
+    private RandomAccessFile spill;
+    private final HashSet<Long> spilled = new HashSet<>();
+    private final LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<>(MAX_BLOCKS, 0.75f, true);
+
+    private InputStream is;
+    private long streamPos;
+    private long length;
+    private int window = 1;
+    private byte[] chunk;
+
+    private int reads;
+    private int hits;
+    private int spillHits;
+    private int reopens;
+    private int streamReads;
+    private long bytesRequested;
+    private long bytesRead;
+
+    /* Size may be -1 when unknown; spillFile may be null to keep blocks in
+     * memory only. */
+    public ContentBlockCache(ContentResolver cr, Uri uri, long size, File spillFile) {
+        this.cr = cr;
+        this.uri = uri;
+        this.spillFile = spillFile;
+        length = size;
+    }
+
+    /* A new spill file in dir. Spill files left behind by a process that
+     * died with a document open are deleted first, once per process, while
+     * none of its own exist yet. */
+    public static synchronized File createSpillFile(File dir) throws IOException {
+        if (!swept) {
+            swept = true;
+            File[] stale = dir.listFiles((d, name) -> name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX));
+            if (stale != null) {
+                for (File f : stale) {
+                    if (!f.delete())
+                        Log.w(APP, "Unable to delete stale spill file " + f);
+                }
+            }
+        }
+        return File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, dir);
+    }
+
+    /* Length of the content, reading it to the end if it was not known. */
+    public synchronized long length() throws IOException {
+        long b = streamPos / BLOCK_SIZE;
+        while (length < 0)
+            block(b++);
+        return length;
+    }
+
+    /* Copy up to len bytes at pos into buf; -1 at the end of the content. */
+    public synchronized int read(long pos, byte[] buf, int off, int len) throws IOException {
+        if (length >= 0 && pos >= length)
+            return -1;
+        bytesRequested += len;
+        byte[] block = block(pos / BLOCK_SIZE);
+        int start = (int) (pos % BLOCK_SIZE);
+        int end = length >= 0 ? (int) Math.min(BLOCK_SIZE, length - pos / BLOCK_SIZE * BLOCK_SIZE) : BLOCK_SIZE;
+        if (start >= end)
+            return -1;
+        int n = Math.min(len, end - start);
+        System.arraycopy(block, start, buf, off, n);
+        return n;
+    }
+
+    private byte[] block(long b) throws IOException {
+        ++reads;
+        byte[] block = blocks.get(b);
+        if (block != null) {
+            ++hits;
+            return block;
+        }
+        if (spilled.contains(b)) {
+            block = new byte[BLOCK_SIZE];
+            spill.seek(b * BLOCK_SIZE);
+            spill.readFully(block);
+            ++spillHits;
+            keep(b, block);
+            return block;
+        }
+
+        // blocks are read whole, so the stream stays block aligned until its end
+        long offset = b * BLOCK_SIZE;
+        if (is != null && streamPos == offset)
+            window = Math.min(MAX_WINDOW, window * 2);
+        else if (is == null || streamPos > offset || offset - streamPos > (long) BLOCK_SIZE * READ_THROUGH_BLOCKS)
+            window = 1;
+        if (is == null || streamPos > offset)
+            reopen();
+        if (offset - streamPos > (long) BLOCK_SIZE * READ_THROUGH_BLOCKS)
+            skip(offset);
+        // cache the blocks on the way when the gap is small
+        fetch((int) ((offset - streamPos) / BLOCK_SIZE) + window);
+        block = blocks.get(b);
+        return block != null ? block : new byte[BLOCK_SIZE];
+    }
+
+    /* Read a run of blocks from the stream position, noting the length if
+     * the end is reached. */
+    private void fetch(int count) throws IOException {
+        int size = count * BLOCK_SIZE;
+        if (chunk == null || chunk.length < size)
+            chunk = new byte[size];
+        int used = 0;
+        int n;
+        while (used < size && (n = is.read(chunk, used, size - used)) > 0) {
+            used += n;
+            ++streamReads;
+        }
+        bytesRead += used;
+        long first = streamPos / BLOCK_SIZE;
+        for (int i = 0; i < count && (i == 0 || i * BLOCK_SIZE < used); i++)
+            keep(first + i, Arrays.copyOfRange(chunk, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE));
+        streamPos += used;
+        if (used < size)
+            length = streamPos;
+    }
+
+    private void skip(long offset) throws IOException {
+        while (streamPos < offset) {
+            long k = is.skip(offset - streamPos);
+            if (k <= 0) {
+                // some providers cannot skip; read instead
+                if (is.read() < 0)
+                    throw new IOException("unexpected end of content at " + streamPos);
+                k = 1;
+            }
+            streamPos += k;
+        }
+    }
+
+    private void reopen() throws IOException {
+        if (is != null) {
+            is.close();
+            ++reopens;
+        }
+        is = cr.openInputStream(uri);
+        if (is == null)
+            throw new IOException("cannot open " + uri);
+        streamPos = 0;
+    }
+
+    private void keep(long b, byte[] block) {
+        blocks.put(b, block);
+        Iterator<Map.Entry<Long, byte[]>> it = blocks.entrySet().iterator();
+        while (blocks.size() > MAX_BLOCKS && it.hasNext()) {
+            Map.Entry<Long, byte[]> e = it.next();
+            it.remove();
+            spill(e.getKey(), e.getValue());
+        }
+    }
+
+    private void spill(long b, byte[] block) {
+        if (spillFile == null || spilled.contains(b))
+            return;
+        try {
+            if (spill == null)
+                spill = new RandomAccessFile(spillFile, "rw");
+            spill.seek(b * BLOCK_SIZE);
+            spill.write(block);
+            spilled.add(b);
+        } catch (IOException x) {
+            Log.w(APP, "Unable to spill block to " + spillFile + ": " + x);
+        }
+    }
+
+    /* Release the stream and delete the spill file. */
+    public synchronized void close() {
+        try {
+            if (is != null)
+                is.close();
+            if (spill != null)
+                spill.close();
+        } catch (IOException x) {
+            Log.w(APP, "Unable to close " + uri + ": " + x);
+        }
+        is = null;
+        spill = null;
+        spilled.clear();
+        blocks.clear();
+        if (spillFile != null)
+            spillFile.delete();
+    }
+
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "ContentBlockCache[reads=%d hits=%d spilled=%d/%d reopens=%d hitRate=%.1f%% streamReads=%d read=%dKB requested=%dKB window=%d]",
+                reads, hits, spillHits, spilled.size(), reopens, reads > 0 ? 100.0 * (hits + spillHits) / reads : 0.0,
+                streamReads, bytesRead / 1024, bytesRequested / 1024, window);
+    }
+}
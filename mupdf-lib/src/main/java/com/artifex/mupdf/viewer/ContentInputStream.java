@@ -2,28 +2,24 @@ package com.artifex.mupdf.viewer;
 
 import android.content.ContentResolver;
 import android.net.Uri;
-import android.util.Log;
 
 import com.artifex.mupdf.fitz.SeekableInputStream;
 
 import java.io.IOException;
-import java.io.InputStream;
 
+/* Seekable stream over a content uri. Reads go through a block cache, which
+ * may be shared by several streams on the same document, each keeping its
+ * own position; seeking is free. */
 public class ContentInputStream implements SeekableInputStream {
-    private final String APP = "MuPDF";
+    protected final ContentBlockCache cache;
+    protected long p;
 
-    protected ContentResolver cr;
-    protected Uri uri;
-    protected InputStream is;
-    protected long length, p;
-    protected boolean mustReopenStream;
+    public ContentInputStream(ContentResolver cr, Uri uri, long size) {
+        this(new ContentBlockCache(cr, uri, size, null));
+    }
 
-    public ContentInputStream(ContentResolver cr, Uri uri, long size) throws IOException {
-        this.cr = cr;
-        this.uri = uri;
-        length = size;
-        mustReopenStream = false;
-        reopenStream();
+    public ContentInputStream(ContentBlockCache cache) {
+        this.cache = cache;
     }
 
     public long seek(long offset, int whence) throws IOException {
@@ -31,34 +27,10 @@ public class ContentInputStream implements SeekableInputStream {
         switch (whence) {
             case SEEK_SET -> newp = offset;
             case SEEK_CUR -> newp = p + offset;
-            case SEEK_END -> {
-                if (length < 0) {
-                    byte[] buf = new byte[16384];
-                    int k;
-                    while ((k = is.read(buf)) != -1)
-                        p += k;
-                    length = p;
-                }
-                newp = length + offset;
-            }
-        }
-
-        if (newp < p) {
-            if (!mustReopenStream) {
-                try {
-                    is.skip(newp - p);
-                } catch (IOException x) {
-                    Log.i(APP, "Unable to skip backwards, reopening input stream");
-                    mustReopenStream = true;
-                }
-            }
-            if (mustReopenStream) {
-                reopenStream();
-                is.skip(newp);
-            }
-        } else if (newp > p) {
-            is.skip(newp - p);
+            case SEEK_END -> newp = cache.length() + offset;
         }
+        if (newp < 0)
+            throw new IOException("seek before start of content");
         return p = newp;
     }
 
@@ -67,21 +39,9 @@ public class ContentInputStream implements SeekableInputStream {
     }
 
     public int read(byte[] buf) throws IOException {
-        int n = is.read(buf);
+        int n = cache.read(p, buf, 0, buf.length);
         if (n > 0)
             p += n;
-        else if (n < 0 && length < 0)
-            length = p;
         return n;
     }
-
-    public void reopenStream() throws IOException {
-        if (is != null) {
-            is.close();
-            is = null;
-        }
-        is = cr.openInputStream(uri);
-        p = 0;
-    }
-
 }
@@ -4,6 +4,7 @@ import static android.view.View.INVISIBLE;
 import static android.view.View.VISIBLE;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -11,9 +12,11 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -28,7 +31,9 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
@@ -40,10 +45,13 @@ import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsCompat;
 import androidx.core.view.WindowInsetsControllerCompat;
 
+import com.artifex.mupdf.fitz.Document;
 import com.artifex.mupdf.fitz.SeekableInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -54,9 +62,26 @@ public class DocumentActivity extends Activity {
     enum TopBarMode {Main, Search}
 
     private final int OUTLINE_REQUEST = 0;
+
+    /* The open document and what goes with it, handed over to the activity
+     * recreated for a configuration change, so it is not opened again. */
+    private static final class Session {
+        MuPDFCore core;
+        FileChannel documentChannel;
+        ContentBlockCache contentCache;
+        String docTitle;
+        String docKey;
+        OutlineModel outline;
+        ArrayList<SearchTaskResult> searchHits;
+        String searchAllText;
+    }
+
     private MuPDFCore core;
+    private FileChannel mDocumentChannel;
+    private ContentBlockCache mContentCache;
     private String mDocTitle;
     private String mDocKey;
+    private DocumentStore.Settings mSavedData;
     private ReaderView mDocView;
     private View mButtonsView;
     private boolean mButtonsVisible;
@@ -71,12 +96,21 @@ public class DocumentActivity extends Activity {
     private ImageButton mSearchFwd;
     private ImageButton mSearchClose;
     private EditText mSearchText;
+    private TextView mSearchCount;
     private SearchTask mSearchTask;
+    private final ArrayList<SearchTaskResult> mSearchHits = new ArrayList<>();
+    private String mSearchAllText;
+    private boolean mSearchAllDone;
     private AlertDialog.Builder mAlertBuilder;
-    private ArrayList<OutlineActivity.Item> mFlatOutline;
+    private OutlineModel mOutline;
+    private boolean mOutlineLoading;
     private boolean mReturnToLibraryActivity = false;
+    private boolean mRetained;
 
     protected int mDisplayDPI;
+    private static final int DEFAULT_FONT_SIZE = 9;
+    private static final int MIN_FONT_SIZE = 5;
+    private static final int MAX_FONT_SIZE = 17;
     private int mLayoutEM = 10;
     private int mLayoutW = 312;
     private int mLayoutH = 504;
@@ -85,6 +119,18 @@ public class DocumentActivity extends Activity {
     protected View fontDecreaseButton;
 
     private int displayedPage = 0;
+    private long mBookmark = MuPDFCore.NO_BOOKMARK;
+    /* The page on screen as a bookmark, made in the background each time a
+     * page settles, as making it takes the document's lock; onPause saves it
+     * as it is. */
+    private long mPositionMark = MuPDFCore.NO_BOOKMARK;
+    private int mPositionPage = -1;
+    private int mPositionSerial;
+    private RenderScheduler.Job mPositionJob;
+    private boolean mLayoutStarted;
+    private boolean mOpening;
+    private RelativeLayout mOpeningView;
+    private boolean mOutlineChecked;
 
     private ImageButton themeButton;
     private ImageButton exitButton;
@@ -103,6 +149,7 @@ public class DocumentActivity extends Activity {
         mSearchFwd = mButtonsView.findViewById(R.id.searchForward);
         mSearchClose = mButtonsView.findViewById(R.id.searchClose);
         mSearchText = mButtonsView.findViewById(R.id.searchText);
+        mSearchCount = mButtonsView.findViewById(R.id.searchCount);
         fontIncreaseButton = mButtonsView.findViewById(R.id.fontIncreaseButton);
         fontDecreaseButton = mButtonsView.findViewById(R.id.fontDecreaseButton);
         themeButton = mButtonsView.findViewById(R.id.themeButton);
@@ -117,27 +164,42 @@ public class DocumentActivity extends Activity {
 
     private MuPDFCore openBuffer(byte[] buffer, String magic) {
         try {
-            core = new MuPDFCore(buffer, magic);
+            return new MuPDFCore(buffer, magic);
         } catch (Exception e) {
             Log.e(APP, "Error opening document buffer: " + e);
             return null;
         }
-        return core;
     }
 
     private MuPDFCore openStream(SeekableInputStream stm, String magic) {
         try {
-            core = new MuPDFCore(stm, magic);
+            return new MuPDFCore(stm, magic);
         } catch (Exception e) {
             Log.e(APP, "Error opening document stream: " + e);
             return null;
         }
-        return core;
     }
 
+    /* Open from a file descriptor when the uri refers to a regular file, so
+     * fitz reads the file in place; otherwise buffer it, or stream it from
+     * the content resolver. */
     private MuPDFCore openCore(Uri uri, long size, String mimetype) throws IOException {
         ContentResolver cr = getContentResolver();
         Log.i(APP, "Opening document " + uri);
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = cr.openFileDescriptor(uri, "r");
+        } catch (IOException | SecurityException x) {
+            Log.i(APP, "  No file descriptor: " + x);
+        }
+        if (pfd != null && pfd.getStatSize() < 0) {
+            // pipes and sockets cannot seek
+            pfd.close();
+            pfd = null;
+        }
+        if (pfd != null)
+            return openDescriptor(pfd, mimetype);
+
         InputStream is = cr.openInputStream(uri);
         byte[] buf = null;
         int used = -1;
@@ -165,13 +227,51 @@ public class DocumentActivity extends Activity {
         } finally {
             is.close();
         }
+        String fingerprint;
+        DocumentSource source;
+        MuPDFCore opened;
         if (buf != null) {
             Log.i(APP, "  Opening document from memory buffer of size " + buf.length);
-            return openBuffer(buf, mimetype);
+            fingerprint = DocumentFingerprint.of(buf, buf.length, buf.length);
+            opened = openBuffer(buf, mimetype);
+            final byte[] buffer = buf;
+            source = () -> Document.openDocument(buffer, mimetype);
         } else {
             Log.i(APP, "  Opening document from stream");
-            return openStream(new ContentInputStream(cr, uri, size), mimetype);
+            final ContentBlockCache cache = new ContentBlockCache(cr, uri, size,
+                    ContentBlockCache.createSpillFile(getCacheDir()));
+            mContentCache = cache;
+            fingerprint = DocumentFingerprint.of(cache, size);
+            opened = openStream(new ContentInputStream(cache), mimetype);
+            source = () -> Document.openDocument(new ContentInputStream(cache), mimetype);
+        }
+        if (opened != null) {
+            opened.setFingerprint(fingerprint);
+            opened.setDocumentSource(source);
+            setCaches(opened);
+        }
+        return opened;
+    }
+
+    private MuPDFCore openDescriptor(ParcelFileDescriptor pfd, String mimetype) throws IOException {
+        Log.i(APP, "  Opening document from file descriptor of size " + pfd.getStatSize());
+        // closing the channel closes the descriptor
+        final FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+        MuPDFCore opened = openStream(new FileChannelInputStream(channel), mimetype);
+        if (opened == null) {
+            channel.close();
+            return null;
         }
+        mDocumentChannel = channel;
+        opened.setFingerprint(DocumentFingerprint.of(channel));
+        opened.setDocumentSource(() -> Document.openDocument(new FileChannelInputStream(channel), mimetype));
+        setCaches(opened);
+        return opened;
+    }
+
+    private void setCaches(MuPDFCore opened) {
+        opened.setRenderCache(new PageRenderDiskCache(new File(getCacheDir(), "pages")));
+        opened.setPaginationCache(new PaginationCache(DocumentStore.get(this)));
     }
 
     private void showCannotOpenDialog(String reason) {
@@ -200,18 +300,37 @@ public class DocumentActivity extends Activity {
         mDisplayDPI = metrics.densityDpi;
 
         mAlertBuilder = new AlertDialog.Builder(this);
+        StartupTrace.join("document activity created");
+
+        final Intent intent = getIntent();
+        mReturnToLibraryActivity = intent.getIntExtra(getComponentName().getPackageName() + ".ReturnToLibraryActivity", 0) != 0;
+
+        Session session = (Session) getLastNonConfigurationInstance();
+        if (session != null) {
+            core = session.core;
+            mDocumentChannel = session.documentChannel;
+            mContentCache = session.contentCache;
+            mDocTitle = session.docTitle;
+            mDocKey = session.docKey;
+            mOutline = session.outline;
+            onDocumentOpened(core, null, savedInstanceState);
+            if (session.searchAllText != null && mSearchCount != null) {
+                mSearchHits.addAll(session.searchHits);
+                mSearchAllText = session.searchAllText;
+                mSearchAllDone = true;
+                mSearchCount.setVisibility(View.VISIBLE);
+                updateSearchCount();
+            }
+            return;
+        }
 
         if (core == null) {
             if (savedInstanceState != null && savedInstanceState.containsKey("DocTitle")) {
                 mDocTitle = savedInstanceState.getString("DocTitle");
             }
-            Intent intent = getIntent();
-
-            mReturnToLibraryActivity = intent.getIntExtra(getComponentName().getPackageName() + ".ReturnToLibraryActivity", 0) != 0;
 
             if (Intent.ACTION_VIEW.equals(intent.getAction())) {
-                Uri uri = intent.getData();
-                String mimetype = getIntent().getType();
+                final Uri uri = intent.getData();
 
                 if (uri == null) {
                     showCannotOpenDialog("No document uri to open");
@@ -221,52 +340,117 @@ public class DocumentActivity extends Activity {
                 mDocKey = uri.toString();
 
                 Log.i(APP, "OPEN URI " + uri);
-                Log.i(APP, "  MAGIC (Intent) " + mimetype);
 
-                mDocTitle = null;
-                long size = -1;
-
-                try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-                    if (cursor != null && cursor.moveToFirst()) {
-                        int idx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                        if (idx >= 0 && cursor.getType(idx) == Cursor.FIELD_TYPE_STRING)
-                            mDocTitle = cursor.getString(idx);
+                // the document is opened off the main thread; the UI is built once it is
+                showOpening();
+                mOpening = true;
+                new Thread(() -> {
+                    showCachedPage(uri);
+                    MuPDFCore opened = null;
+                    String error = null;
+                    try {
+                        opened = openDocument(uri, intent.getType());
+                        if (opened != null)
+                            mSavedData = loadSavedData(opened);
+                    } catch (Exception x) {
+                        error = x.toString();
+                    }
+                    final MuPDFCore result = opened;
+                    final String reason = error;
+                    runOnUiThread(() -> onDocumentOpened(result, reason, savedInstanceState));
+                }, "MuPDF-open").start();
+                return;
+            }
+        }
+        onDocumentOpened(core, null, savedInstanceState);
+    }
 
-                        idx = cursor.getColumnIndex(OpenableColumns.SIZE);
-                        if (idx >= 0 && cursor.getType(idx) == Cursor.FIELD_TYPE_INTEGER)
-                            size = cursor.getLong(idx);
+    /* Runs off the main thread: look up the name, size and type of the
+     * document and open it. */
+    private MuPDFCore openDocument(Uri uri, String mimetype) throws IOException {
+        Log.i(APP, "  MAGIC (Intent) " + mimetype);
 
-                        if (size == 0)
-                            size = -1;
-                    }
-                } catch (Exception x) {
-                    // Ignore any exception and depend on default values for title and size (unless one was decoded)
-                }
+        mDocTitle = null;
+        long size = -1;
 
-                Log.i(APP, "  NAME " + mDocTitle);
-                Log.i(APP, "  SIZE " + size);
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int idx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (idx >= 0 && cursor.getType(idx) == Cursor.FIELD_TYPE_STRING)
+                    mDocTitle = cursor.getString(idx);
 
-                if (mimetype == null || mimetype.equals("application/octet-stream")) {
-                    mimetype = getContentResolver().getType(uri);
-                    Log.i(APP, "  MAGIC (Resolved) " + mimetype);
-                }
-                if (mimetype == null || mimetype.equals("application/octet-stream")) {
-                    mimetype = mDocTitle;
-                    Log.i(APP, "  MAGIC (Filename) " + mimetype);
-                }
+                idx = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (idx >= 0 && cursor.getType(idx) == Cursor.FIELD_TYPE_INTEGER)
+                    size = cursor.getLong(idx);
 
-                try {
-                    core = openCore(uri, size, mimetype);
-                    SearchTaskResult.set(null);
-                } catch (Exception x) {
-                    showCannotOpenDialog(x.toString());
-                    return;
-                }
-            }
-            if (core != null && core.countPages() == 0) {
-                core = null;
+                if (size == 0)
+                    size = -1;
             }
+        } catch (Exception x) {
+            // Ignore any exception and depend on default values for title and size (unless one was decoded)
+        }
+
+        Log.i(APP, "  NAME " + mDocTitle);
+        Log.i(APP, "  SIZE " + size);
+        StartupTrace.mark("document queried");
+
+        if (mimetype == null || mimetype.equals("application/octet-stream")) {
+            mimetype = getContentResolver().getType(uri);
+            Log.i(APP, "  MAGIC (Resolved) " + mimetype);
+        }
+        if (mimetype == null || mimetype.equals("application/octet-stream")) {
+            mimetype = mDocTitle;
+            Log.i(APP, "  MAGIC (Filename) " + mimetype);
         }
+        MuPDFCore opened = openCore(uri, size, mimetype);
+        StartupTrace.mark("document opened");
+        return opened;
+    }
+
+    /* Runs off the main thread: show the page the last document was left
+     * at, from the render cache, until the document has been opened. */
+    private void showCachedPage(Uri uri) {
+        WarmStart last = WarmStart.load(this, uri.toString());
+        if (last == null || last.fingerprint == null || last.renderKey == null)
+            return;
+        final Bitmap page = new PageRenderDiskCache(new File(getCacheDir(), "pages")).decode(last.fingerprint, last.renderKey);
+        if (page == null)
+            return;
+        DocumentStore.Settings saved = DocumentStore.get(this).getSettings(last.fingerprint);
+        final boolean invert = saved != null && saved.invert;
+        runOnUiThread(() -> {
+            if (!mOpening || isDestroyed())
+                return;
+            ImageView image = new ImageView(this);
+            image.setScaleType(ImageView.ScaleType.FIT_CENTER);
+            image.setImageBitmap(page);
+            image.setColorFilter(PageView.themeFilter(invert));
+            mOpeningView.addView(image, 0, new RelativeLayout.LayoutParams(
+                    RelativeLayout.LayoutParams.MATCH_PARENT, RelativeLayout.LayoutParams.MATCH_PARENT));
+            StartupTrace.mark(String.format(Locale.ROOT, "cached page %d/%d shown", last.page + 1, last.pageCount));
+        });
+    }
+
+    private void onDocumentOpened(MuPDFCore opened, String error, Bundle savedInstanceState) {
+        mOpening = false;
+        if (isDestroyed()) {
+            if (opened != null)
+                opened.onDestroy();
+            closeDocumentFiles();
+            return;
+        }
+        if (error != null) {
+            showCannotOpenDialog(error);
+            return;
+        }
+        if (opened != null && opened.countPages() == 0) {
+            opened.onDestroy();
+            opened = null;
+        }
+        // a retained document keeps its search highlight
+        if (opened != core)
+            SearchTaskResult.set(null);
+        core = opened;
         if (core == null) {
             AlertDialog alert = mAlertBuilder.create();
             alert.setTitle(R.string.cannot_open_document);
@@ -277,8 +461,24 @@ public class DocumentActivity extends Activity {
             return;
         }
         createUI(savedInstanceState);
+        mOpeningView = null;
 
         applySavedData();
+        StartupTrace.mark("reader created");
+    }
+
+    /* Placeholder shown while the document is being opened. */
+    private void showOpening() {
+        RelativeLayout layout = new RelativeLayout(this);
+        layout.setBackgroundColor(Color.BLACK);
+        ProgressBar progress = new ProgressBar(this);
+        progress.setIndeterminate(true);
+        RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(
+                RelativeLayout.LayoutParams.WRAP_CONTENT, RelativeLayout.LayoutParams.WRAP_CONTENT);
+        params.addRule(RelativeLayout.CENTER_IN_PARENT);
+        layout.addView(progress, params);
+        setContentView(layout);
+        mOpeningView = layout;
     }
 
     public void createUI(Bundle savedInstanceState) {
@@ -295,6 +495,7 @@ public class DocumentActivity extends Activity {
                 mPageNumberView.setText(String.format(Locale.ROOT, "%d / %d", i + 1, core.countPages()));
                 mPageSlider.setMax((core.countPages() - 1) * mPageSliderRes);
                 mPageSlider.setProgress(i * mPageSliderRes);
+                markPosition(i);
                 super.onMoveToChild(i);
             }
 
@@ -323,6 +524,46 @@ public class DocumentActivity extends Activity {
         };
         mDocView.setAdapter(new PageAdapter(this, core));
 
+        core.setPaginationListener(new MuPDFCore.PaginationListener() {
+            @Override
+            public void onPageReady(int pageNumber) {
+                if (core == null)
+                    return;
+                mOutline = null;
+                // for screen rotation
+                mDocView.mHistory.clear();
+                mDocView.refresh();
+                mDocView.setDisplayedViewIndex(pageNumber);
+                updatePageCount();
+                checkOutline();
+                speculateLayouts();
+            }
+
+            @Override
+            public void onPagesCounted(Pagination previous, Pagination current) {
+                if (core == null)
+                    return;
+                mOutline = null;
+                int changed = current.firstDifference(previous);
+                if (changed >= 0) {
+                    // pages from changed on have moved; follow them by chapter and page
+                    for (int i = 0; i < mDocView.mHistory.size(); i++)
+                        mDocView.mHistory.set(i, current.toPageNumber(previous.toLocation(mDocView.mHistory.get(i))));
+                    int displayed = mDocView.getDisplayedViewIndex();
+                    PageAdapter adapter = (PageAdapter) mDocView.getAdapter();
+                    if (changed <= displayed + 1) {
+                        mDocView.refresh();
+                        mDocView.setDisplayedViewIndex(current.toPageNumber(previous.toLocation(displayed)));
+                    } else {
+                        // the pages on screen keep their numbers; only cached ones are stale
+                        adapter.refresh();
+                        adapter.setDisplayedPage(displayed);
+                    }
+                }
+                updatePageCount();
+            }
+        });
+
         mSearchTask = new SearchTask(this, core) {
             @Override
             protected void onTextFound(SearchTaskResult result) {
@@ -332,6 +573,21 @@ public class DocumentActivity extends Activity {
                 // Make the ReaderView act on the change to SearchTaskResult via overridden onChildSetup method.
                 mDocView.resetupChildren();
             }
+
+            @Override
+            protected void onHitFound(SearchTaskResult result) {
+                int i = 0;
+                while (i < mSearchHits.size() && mSearchHits.get(i).pageNumber < result.pageNumber)
+                    ++i;
+                mSearchHits.add(i, result);
+                updateSearchCount();
+            }
+
+            @Override
+            protected void onScanDone() {
+                mSearchAllDone = true;
+                updateSearchCount();
+            }
         };
 
         // Make the buttons overlay, and store all its controls in variables
@@ -379,6 +635,8 @@ public class DocumentActivity extends Activity {
                     SearchTaskResult.set(null);
                     mDocView.resetupChildren();
                 }
+                if (mSearchAllText != null && !mSearchText.getText().toString().equals(mSearchAllText))
+                    clearSearchHits();
             }
 
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -404,23 +662,33 @@ public class DocumentActivity extends Activity {
         // Activate search invoking buttons
         mSearchBack.setOnClickListener(v -> search(-1));
         mSearchFwd.setOnClickListener(v -> search(1));
-
-        if (core.hasOutline()) {
-            mOutlineButton.setOnClickListener(v -> {
-                if (mFlatOutline == null)
-                    mFlatOutline = core.getOutline();
-                if (mFlatOutline != null) {
-                    Intent intent = new Intent(DocumentActivity.this, OutlineActivity.class);
-                    Bundle bundle = new Bundle();
-                    bundle.putInt("POSITION", mDocView.getDisplayedViewIndex());
-                    bundle.putSerializable("OUTLINE", mFlatOutline);
-                    intent.putExtra("PALLETBUNDLE", Pallet.sendBundle(bundle));
-                    startActivityForResult(intent, OUTLINE_REQUEST);
-                }
+        mSearchCount.setOnClickListener(v -> showSearchHits());
+
+        // shown once the outline has been found, after the first page
+        mOutlineButton.setVisibility(View.GONE);
+        mOutlineButton.setOnClickListener(v -> {
+            if (mOutline != null) {
+                showOutline();
+                return;
+            }
+            if (mOutlineLoading)
+                return;
+            // loading the outline takes the document's lock
+            mOutlineLoading = true;
+            final MuPDFCore loading = core;
+            loading.getRenderScheduler().submit(RenderScheduler.Priority.VISIBLE, null, () -> {
+                OutlineModel model = loading.getOutlineModel();
+                runOnUiThread(() -> {
+                    mOutlineLoading = false;
+                    if (loading != core || model == null)
+                        return;
+                    mOutline = model;
+                    showOutline();
+                });
             });
-        } else {
-            mOutlineButton.setVisibility(View.GONE);
-        }
+        });
+        if (!core.isReflowable())
+            checkOutline();
         if (savedInstanceState == null || !savedInstanceState.getBoolean("ButtonsHidden", false)) {
             showButtons();
         }
@@ -444,7 +712,12 @@ public class DocumentActivity extends Activity {
         // theme button
         themeButton.setOnClickListener(b -> {
             MuPDFCore.toggleInvertRender();
-            mDocView.refresh();
+            // renders are the same in either theme, so the pages are only redrawn
+            mDocView.applyToChildren(new ReaderView.ViewMapper() {
+                void applyToView(View view) {
+                    ((PageView) view).applyTheme();
+                }
+            });
         });
         // select book button - finish activity and trigger onresume in MainActivity
         exitButton.setOnClickListener(b -> {
@@ -458,14 +731,14 @@ public class DocumentActivity extends Activity {
         });
         // font increase button
         fontIncreaseButton.setOnClickListener(b -> {
-            if (mLayoutEM <= 16) {
+            if (mLayoutEM < MAX_FONT_SIZE) {
                 ++mLayoutEM;
                 updateLayoutFontChange();
             }
         });
         // font decrease button
         fontDecreaseButton.setOnClickListener(b -> {
-            if (mLayoutEM >= 6) {
+            if (mLayoutEM > MIN_FONT_SIZE) {
                 --mLayoutEM;
                 updateLayoutFontChange();
             }
@@ -480,25 +753,90 @@ public class DocumentActivity extends Activity {
     }
 
     public void persistData() {
-        final String bookId = mDocTitle.replace(" ", "");
-        SharedPreferences sharedPreferences = getSharedPreferences(bookId, MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putInt("fontSize", mLayoutEM);
-        editor.putInt("currentPage", mDocView.getDisplayedViewIndex());
-        editor.putBoolean("invertTheme", MuPDFCore.getInvert());
-        editor.putBoolean("horizontalScroll", ReaderView.isHorizontalScrolling());
-        editor.apply();
+        if (core == null || mDocTitle == null || mDocView == null)
+            return;
+        String key = storeKey(core);
+        int page = mDocView.getDisplayedViewIndex();
+        if (key != null) {
+            // a page number is only good for the layout it was taken in
+            long mark = mPositionPage == page ? mPositionMark : MuPDFCore.NO_BOOKMARK;
+            DocumentStore.get(this).putSettings(key, new DocumentStore.Settings(mDocTitle, mLayoutEM,
+                    mark, page, MuPDFCore.getInvert(), ReaderView.isHorizontalScrolling()));
+        }
+
+        if (mDocKey != null) {
+            View view = mDocView.getDisplayedView();
+            String renderKey = view instanceof PageView ? ((PageView) view).getRenderCacheKey() : null;
+            new WarmStart(mDocKey, core.getFingerprint(), core.countPages(), page, renderKey).save(this);
+        }
+    }
+
+    /* Make a bookmark of a page that has settled on screen. A page left, or
+     * renumbered by a relayout, before its bookmark is made is marked again. */
+    private void markPosition(final int page) {
+        if (mPositionJob != null)
+            mPositionJob.cancel();
+        mPositionPage = -1;
+        final int serial = ++mPositionSerial;
+        final MuPDFCore marking = core;
+        mPositionJob = marking.getRenderScheduler().submit(RenderScheduler.Priority.PAGE_SIZE, null, () -> {
+            long mark = marking.makeBookmark(page);
+            runOnUiThread(() -> {
+                if (serial != mPositionSerial || marking != core)
+                    return;
+                mPositionMark = mark;
+                mPositionPage = page;
+            });
+        });
     }
 
     public void applySavedData() {
+        DocumentStore.Settings saved = mSavedData != null ? mSavedData : loadSavedData(core);
+        mSavedData = null;
+
+        setFontSize(saved != null ? saved.fontSize : DEFAULT_FONT_SIZE);
+        if (saved != null && saved.bookmark != MuPDFCore.NO_BOOKMARK)
+            setBookmark(saved.bookmark);
+        else
+            setDisplayedPage(saved != null ? saved.page : 0);
+        MuPDFCore.setInvert(saved != null && saved.invert);
+        ReaderView.setHorizontalScrolling(saved == null || saved.horizontalScroll);
+        directionButton.setRotation(ReaderView.isHorizontalScrolling() ? 0 : 90);
+    }
+
+    /* Documents are stored by content, so a renamed or moved copy keeps its
+     * place; the title stands in when there is no fingerprint. */
+    private String storeKey(MuPDFCore c) {
+        if (c.getFingerprint() != null)
+            return c.getFingerprint();
+        return mDocTitle != null ? "title:" + mDocTitle : null;
+    }
+
+    /* Books read before the store existed have a preferences file each,
+     * named after the title; it is moved into the store the first time the
+     * book is opened again. */
+    private DocumentStore.Settings loadSavedData(MuPDFCore c) {
+        String key = storeKey(c);
+        if (key == null)
+            return null;
+        DocumentStore store = DocumentStore.get(this);
+        DocumentStore.Settings saved = store.getSettings(key);
+        if (saved != null || mDocTitle == null)
+            return saved;
         final String bookId = mDocTitle.replace(" ", "");
+        File legacy = new File(new File(getApplicationInfo().dataDir, "shared_prefs"), bookId + ".xml");
+        if (!legacy.isFile())
+            return null;
         SharedPreferences sharedPreferences = getSharedPreferences(bookId, MODE_PRIVATE);
-
-        setFontSize(sharedPreferences.getInt("fontSize", 9));
-        setDisplayedPage(sharedPreferences.getInt("currentPage", 0));
-        MuPDFCore.setInvert(sharedPreferences.getBoolean("invertTheme", false));
-        ReaderView.setHorizontalScrolling(sharedPreferences.getBoolean("horizontalScroll", true));
-        directionButton.setRotation(ReaderView.isHorizontalScrolling() ? 0 : 90);
+        saved = new DocumentStore.Settings(mDocTitle,
+                sharedPreferences.getInt("fontSize", DEFAULT_FONT_SIZE),
+                sharedPreferences.getLong("bookmark", MuPDFCore.NO_BOOKMARK),
+                sharedPreferences.getInt("currentPage", 0),
+                sharedPreferences.getBoolean("invertTheme", false),
+                sharedPreferences.getBoolean("horizontalScroll", true));
+        store.putSettings(key, saved);
+        deleteSharedPreferences(bookId);
+        return saved;
     }
 
     public void setFontSize(int fontSize) {
@@ -507,34 +845,113 @@ public class DocumentActivity extends Activity {
 
     public void setDisplayedPage(int page) {
         displayedPage = page;
+        mBookmark = MuPDFCore.NO_BOOKMARK;
+    }
+
+    public void setBookmark(long bookmark) {
+        mBookmark = bookmark;
     }
 
+    /* The layout runs in the background; the view is reset once the page
+     * to show has been laid out, through the pagination listener. */
     public void updateLayoutInit() {
-        core.updateLayout(mLayoutW, mLayoutH, mLayoutEM);
-        // for screen rotation
-        mDocView.mHistory.clear();
-        mDocView.refresh();
+        if (mLayoutStarted) {
+            // screen rotation keeps the position being read
+            core.startLayout(mLayoutW, mLayoutH, mLayoutEM, mDocView.getDisplayedViewIndex());
+        } else {
+            mLayoutStarted = true;
+            if (mBookmark != MuPDFCore.NO_BOOKMARK)
+                core.startLayoutAtBookmark(mLayoutW, mLayoutH, mLayoutEM, mBookmark);
+            else
+                core.startLayoutAtPage(mLayoutW, mLayoutH, mLayoutEM, displayedPage);
+        }
+    }
+
+    /* Opt-in: while the reader reads, count the layout of the other
+     * orientation, and of the font sizes either side, so that rotating or
+     * changing the font finds its pages already counted. */
+    private void speculateLayouts() {
+        if (!core.isReflowable() || !getResources().getBoolean(R.bool.speculative_layout))
+            return;
+        if (((ActivityManager) getSystemService(ACTIVITY_SERVICE)).isLowRamDevice())
+            return;
+        ArrayList<int[]> layouts = new ArrayList<>();
+        int[] rotated = rotatedLayout();
+        if (rotated != null)
+            layouts.add(rotated);
+        int steps = getResources().getInteger(R.integer.speculative_font_steps);
+        for (int i = 1; i <= steps; i++) {
+            if (mLayoutEM + i <= MAX_FONT_SIZE)
+                layouts.add(new int[]{mLayoutW, mLayoutH, mLayoutEM + i});
+            if (mLayoutEM - i >= MIN_FONT_SIZE)
+                layouts.add(new int[]{mLayoutW, mLayoutH, mLayoutEM - i});
+        }
+        core.speculate(layouts);
+    }
+
+    /* The layout the reader would get with the device turned: the window
+     * turned, less the system bars where they would then be. The status bar
+     * stays at the top of the screen and the navigation bar on its edge of
+     * the device. Null until the window has been laid out. */
+    private int[] rotatedLayout() {
+        View root = (View) mDocView.getParent();
+        if (root == null || root.getWidth() <= 0 || root.getHeight() <= 0)
+            return null;
+        WindowInsetsCompat insets = ViewCompat.getRootWindowInsets(root);
+        if (insets == null)
+            return null;
+        Insets status = insets.getInsets(WindowInsetsCompat.Type.statusBars());
+        Insets nav = insets.getInsets(WindowInsetsCompat.Type.navigationBars());
+        int w = root.getHeight() - nav.top - nav.bottom;
+        int h = root.getWidth() - status.top - nav.left - nav.right;
+        if (w <= 0 || h <= 0)
+            return null;
+        return new int[]{w * 72 / mDisplayDPI, h * 72 / mDisplayDPI, mLayoutEM};
+    }
 
-        mDocView.setDisplayedViewIndex(displayedPage);
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (core != null && level >= TRIM_MEMORY_RUNNING_LOW) {
+            core.stopSpeculation();
+            core.releaseIdleWorkers();
+        }
     }
 
     public void updateLayoutFontChange() {
-        displayedPage = mDocView.getDisplayedViewIndex();
-        final float oldProgress = (float) displayedPage / core.countPages();
-        core.updateLayout(mLayoutW, mLayoutH, mLayoutEM);
-
-        mFlatOutline = null;
-        // for screen rotation
-        mDocView.mHistory.clear();
-        mDocView.refresh();
-
-        // update page count indicator
-        updatePageNumView(displayedPage);
-        // update slider
-        mPageSlider.setMax((core.countPages() - 1) * mPageSliderRes);
+        core.startLayout(mLayoutW, mLayoutH, mLayoutEM, mDocView.getDisplayedViewIndex());
+    }
 
-        final int pageAdjustedForProgress = Math.round(oldProgress * core.countPages());
-        mDocView.setDisplayedViewIndex(pageAdjustedForProgress);
+    private void showOutline() {
+        Intent intent = new Intent(DocumentActivity.this, OutlineActivity.class);
+        Bundle bundle = new Bundle();
+        bundle.putInt("POSITION", mDocView.getDisplayedViewIndex());
+        bundle.putInt("OUTLINE", Pallet.send(mOutline));
+        intent.putExtra("PALLETBUNDLE", Pallet.sendBundle(bundle));
+        startActivityForResult(intent, OUTLINE_REQUEST);
+    }
+
+    /* Look for an outline in the background, once, behind the renders of
+     * the first page. */
+    private void checkOutline() {
+        if (mOutlineChecked)
+            return;
+        mOutlineChecked = true;
+        final MuPDFCore checking = core;
+        checking.getRenderScheduler().submit(RenderScheduler.Priority.BACKGROUND, null, () -> {
+            boolean found = checking.hasOutline();
+            runOnUiThread(() -> {
+                if (core == checking && found)
+                    mOutlineButton.setVisibility(VISIBLE);
+            });
+        });
+    }
+
+    private void updatePageCount() {
+        int index = mDocView.getDisplayedViewIndex();
+        updatePageNumView(index);
+        mPageSlider.setMax((core.countPages() - 1) * mPageSliderRes);
+        mPageSlider.setProgress(index * mPageSliderRes);
     }
 
     @Override
@@ -564,6 +981,27 @@ public class DocumentActivity extends Activity {
             outState.putBoolean("SearchMode", true);
     }
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        if (core == null)
+            return null;
+        Session session = new Session();
+        session.core = core;
+        session.documentChannel = mDocumentChannel;
+        session.contentCache = mContentCache;
+        session.docTitle = mDocTitle;
+        session.docKey = mDocKey;
+        session.outline = mOutline;
+        // hits of an unfinished scan are dropped; the next search starts over
+        if (mSearchAllDone) {
+            session.searchHits = new ArrayList<>(mSearchHits);
+            session.searchAllText = mSearchAllText;
+        }
+        core.setPaginationListener(null);
+        mRetained = true;
+        return session;
+    }
+
     public void onDestroy() {
         if (mDocView != null) {
             mDocView.applyToChildren(new ReaderView.ViewMapper() {
@@ -571,13 +1009,37 @@ public class DocumentActivity extends Activity {
                     ((PageView) view).releaseBitmaps();
                 }
             });
+            ((PageAdapter) mDocView.getAdapter()).releaseBitmaps();
         }
-        if (core != null)
+        if (mSearchTask != null)
+            mSearchTask.stop();
+        if (core != null && !mRetained) {
+            Log.i(APP, core.getBitmapPool().toString());
             core.onDestroy();
+        }
         core = null;
+        // a document still being opened is closed when it arrives
+        if (!mOpening && !mRetained)
+            closeDocumentFiles();
         super.onDestroy();
     }
 
+    private void closeDocumentFiles() {
+        if (mDocumentChannel != null) {
+            try {
+                mDocumentChannel.close();
+            } catch (IOException x) {
+                Log.w(APP, "Unable to close document: " + x);
+            }
+            mDocumentChannel = null;
+        }
+        if (mContentCache != null) {
+            Log.i(APP, mContentCache.toString());
+            mContentCache.close();
+            mContentCache = null;
+        }
+    }
+
     private void setButtonEnabled(ImageButton button, boolean enabled) {
         button.setEnabled(enabled);
         button.setColorFilter(enabled ? Color.argb(255, 255, 255, 255) : Color.argb(255, 128, 128, 128));
@@ -645,6 +1107,8 @@ public class DocumentActivity extends Activity {
     private void searchModeOn() {
         if (mTopBarMode != TopBarMode.Search) {
             mTopBarMode = TopBarMode.Search;
+            // index the text while the query is being typed
+            core.getTextIndex().build();
             //Focus on EditTextWidget
             mSearchText.requestFocus();
             showKeyboard();
@@ -657,6 +1121,7 @@ public class DocumentActivity extends Activity {
             mTopBarMode = TopBarMode.Main;
             hideKeyboard();
             mTopBarSwitcher.setDisplayedChild(mTopBarMode.ordinal());
+            clearSearchHits();
             SearchTaskResult.set(null);
             // Make the ReaderView act on the change to mSearchTaskResult
             // via overridden onChildSetup method.
@@ -687,11 +1152,54 @@ public class DocumentActivity extends Activity {
         int displayPage = mDocView.getDisplayedViewIndex();
         SearchTaskResult r = SearchTaskResult.get();
         int searchPage = r != null ? r.pageNumber : -1;
-        mSearchTask.search(mSearchText.getText().toString(), direction, displayPage, searchPage);
+        String text = mSearchText.getText().toString();
+        mSearchTask.search(text, direction, displayPage, searchPage);
+        if (!text.equals(mSearchAllText)) {
+            clearSearchHits();
+            mSearchAllText = text;
+            mSearchCount.setVisibility(View.VISIBLE);
+            updateSearchCount();
+            mSearchTask.searchAll(text, displayPage);
+        }
+    }
+
+    private void clearSearchHits() {
+        mSearchTask.cancelAll();
+        mSearchHits.clear();
+        mSearchAllText = null;
+        mSearchAllDone = false;
+        mSearchCount.setVisibility(View.GONE);
+    }
+
+    private void updateSearchCount() {
+        int hits = 0;
+        for (SearchTaskResult r : mSearchHits)
+            hits += r.searchBoxes.length;
+        mSearchCount.setText(String.format(Locale.ROOT, mSearchAllDone ? "%d" : "%d\u2026", hits));
+    }
+
+    private void showSearchHits() {
+        if (mSearchHits.isEmpty())
+            return;
+        final SearchTaskResult[] hits = mSearchHits.toArray(new SearchTaskResult[0]);
+        String[] items = new String[hits.length];
+        for (int i = 0; i < hits.length; i++)
+            items[i] = getString(R.string.search_hits_on_page, hits[i].pageNumber + 1, hits[i].searchBoxes.length);
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.search_hits, mSearchAllText))
+                .setItems(items, (dialog, which) -> {
+                    SearchTaskResult.set(hits[which]);
+                    mDocView.pushHistory();
+                    mDocView.setDisplayedViewIndex(hits[which].pageNumber);
+                    mDocView.resetupChildren();
+                })
+                .show();
     }
 
     @Override
     public boolean onSearchRequested() {
+        if (mDocView == null)
+            return super.onSearchRequested();
         if (mButtonsVisible && mTopBarMode == TopBarMode.Search) {
             hideButtons();
         } else {
@@ -703,6 +1211,8 @@ public class DocumentActivity extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
+        if (mDocView == null)
+            return super.onPrepareOptionsMenu(menu);
         if (mButtonsVisible && mTopBarMode != TopBarMode.Search) {
             hideButtons();
         } else {
@@ -720,11 +1230,15 @@ public class DocumentActivity extends Activity {
     @Override
     protected void onPause() {
         persistData();
+        DocumentStore.get(this).flushNow();
         super.onPause();
     }
 
     @Override
     protected void onStop() {
+        // speculation is for while the document is being read
+        if (core != null)
+            core.stopSpeculation();
         super.onStop();
     }
 
@@ -0,0 +1,55 @@
+package com.artifex.mupdf.viewer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/* Identifies document contents independently of the uri they were opened
+ * from: a hash of the file size and its leading bytes. */
+public final class DocumentFingerprint {
+    static final int HEAD_BYTES = 64 * 1024;
+
+    private DocumentFingerprint() {
+    }
+
+    public static String of(byte[] buf, int len, long size) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (int i = 0; i < 8; i++)
+                md.update((byte) (size >>> (8 * i)));
+            md.update(buf, 0, Math.min(len, HEAD_BYTES));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+                sb.append(String.format(Locale.ROOT, "%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /* The head is read through the block cache, where fitz finds it again.
+     * A size of -1 would make streams of unknown size alike, so the content
+     * is then read to its end for its real size; the blocks stay cached. */
+    public static String of(ContentBlockCache cache, long size) throws IOException {
+        if (size < 0)
+            size = cache.length();
+        byte[] buf = new byte[HEAD_BYTES];
+        int used = 0;
+        int n;
+        while (used < buf.length && (n = cache.read(used, buf, used, buf.length - used)) > 0)
+            used += n;
+        return of(buf, used, size);
+    }
+
+    public static String of(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEAD_BYTES);
+        int used = 0;
+        int n;
+        while (used < HEAD_BYTES && (n = channel.read(head, used)) > 0)
+            used += n;
+        return of(head.array(), used, channel.size());
+    }
+}
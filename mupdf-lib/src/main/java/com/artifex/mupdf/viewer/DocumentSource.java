@@ -0,0 +1,8 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Document;
+
+/* Opens further handles on the document a core was opened from. */
+public interface DocumentSource {
+    Document open();
+}
@@ -0,0 +1,231 @@
+package com.artifex.mupdf.viewer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Reading state and cached pagination of every document in one SQLite
+ * database, keyed by document fingerprint. A lookup reads one indexed row
+ * instead of parsing a preferences file per book. Writes are queued,
+ * coalesced per document and layout, and applied in one transaction on a
+ * background thread shortly after; reads see queued writes. */
+public class DocumentStore {
+    private static final String APP = "MuPDF";
+    private static final String NAME = "documents.db";
+    private static final int VERSION = 1;
+    private static final int MAX_PAGINATIONS = 256;
+    /* Writes arriving within this many milliseconds share a transaction. */
+    private static final long FLUSH_DELAY = 200;
+
+    /* What is restored when a document is opened again. */
+    public static final class Settings {
+        public final String title;
+        public final int fontSize;
+        public final long bookmark;
+        public final int page;
+        public final boolean invert;
+        public final boolean horizontalScroll;
+
+        public Settings(String title, int fontSize, long bookmark, int page, boolean invert, boolean horizontalScroll) {
+            this.title = title;
+            this.fontSize = fontSize;
+            this.bookmark = bookmark;
+            this.page = page;
+            this.invert = invert;
+            this.horizontalScroll = horizontalScroll;
+        }
+    }
+
+    private static final class PendingPagination {
+        final String fingerprint;
+        final String layoutKey;
+        final PaginationCache.Entry entry;
+
+        PendingPagination(String fingerprint, String layoutKey, PaginationCache.Entry entry) {
+            this.fingerprint = fingerprint;
+            this.layoutKey = layoutKey;
+            this.entry = entry;
+        }
+    }
+
+    private static DocumentStore instance;
+
+    private final SQLiteOpenHelper helper;
+    private final Handler writer;
+    private final LinkedHashMap<String, Settings> pendingSettings = new LinkedHashMap<>();
+    private final LinkedHashMap<String, PendingPagination> pendingPaginations = new LinkedHashMap<>();
+    private boolean flushQueued;
+
+    public static synchronized DocumentStore get(Context context) {
+        if (instance == null)
+            instance = new DocumentStore(context.getApplicationContext());
+        return instance;
+    }
+
+    private DocumentStore(Context context) {
+        helper = new SQLiteOpenHelper(context, NAME, null, VERSION) {
+            public void onCreate(SQLiteDatabase db) {
+                db.execSQL("CREATE TABLE documents (fingerprint TEXT PRIMARY KEY, title TEXT, font_size INTEGER, "
+                        + "bookmark INTEGER, page INTEGER, invert INTEGER, horizontal_scroll INTEGER, used INTEGER)");
+                db.execSQL("CREATE TABLE paginations (fingerprint TEXT, layout TEXT, counts BLOB, outline_pages BLOB, "
+                        + "used INTEGER, PRIMARY KEY (fingerprint, layout))");
+                db.execSQL("CREATE INDEX paginations_used ON paginations (used)");
+            }
+
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                db.execSQL("DROP TABLE IF EXISTS documents");
+                db.execSQL("DROP TABLE IF EXISTS paginations");
+                onCreate(db);
+            }
+        };
+        // lookups at open time are not held up by a write in progress
+        helper.setWriteAheadLoggingEnabled(true);
+        HandlerThread thread = new HandlerThread("MuPDF-store");
+        thread.start();
+        writer = new Handler(thread.getLooper());
+    }
+
+    /* The saved state of a document, or null if it has none. */
+    public Settings getSettings(String fingerprint) {
+        synchronized (this) {
+            Settings pending = pendingSettings.get(fingerprint);
+            if (pending != null)
+                return pending;
+        }
+        try (Cursor c = helper.getReadableDatabase().query("documents",
+                new String[]{"title", "font_size", "bookmark", "page", "invert", "horizontal_scroll"},
+                "fingerprint = ?", new String[]{fingerprint}, null, null, null)) {
+            if (!c.moveToFirst())
+                return null;
+            return new Settings(c.getString(0), c.getInt(1), c.getLong(2), c.getInt(3),
+                    c.getInt(4) != 0, c.getInt(5) != 0);
+        } catch (SQLException x) {
+            Log.w(APP, "Unable to read document state: " + x);
+            return null;
+        }
+    }
+
+    public synchronized void putSettings(String fingerprint, Settings settings) {
+        pendingSettings.put(fingerprint, settings);
+        queueFlush();
+    }
+
+    PaginationCache.Entry getPagination(String fingerprint, String layoutKey) {
+        synchronized (this) {
+            PendingPagination pending = pendingPaginations.get(fingerprint + "/" + layoutKey);
+            if (pending != null)
+                return pending.entry;
+        }
+        try (Cursor c = helper.getReadableDatabase().query("paginations",
+                new String[]{"counts", "outline_pages"},
+                "fingerprint = ? AND layout = ?", new String[]{fingerprint, layoutKey}, null, null, null)) {
+            if (!c.moveToFirst())
+                return null;
+            return new PaginationCache.Entry(toInts(c.getBlob(0)), c.isNull(1) ? null : toInts(c.getBlob(1)));
+        } catch (SQLException x) {
+            Log.w(APP, "Unable to read cached pagination: " + x);
+            return null;
+        }
+    }
+
+    synchronized void putPagination(String fingerprint, String layoutKey, PaginationCache.Entry entry) {
+        pendingPaginations.put(fingerprint + "/" + layoutKey, new PendingPagination(fingerprint, layoutKey, entry));
+        queueFlush();
+    }
+
+    /* Write queued state now rather than after the delay, as when the app
+     * is paused and may be killed without further notice. */
+    public void flushNow() {
+        writer.postAtFrontOfQueue(this::flush);
+    }
+
+    private void queueFlush() {
+        if (flushQueued)
+            return;
+        flushQueued = true;
+        writer.postDelayed(this::flush, FLUSH_DELAY);
+    }
+
+    /* Runs on the writer thread. Queued writes stay visible to readers until
+     * they are committed, unless replaced by newer ones meanwhile. */
+    private void flush() {
+        LinkedHashMap<String, Settings> settings;
+        LinkedHashMap<String, PendingPagination> paginations;
+        synchronized (this) {
+            flushQueued = false;
+            settings = new LinkedHashMap<>(pendingSettings);
+            paginations = new LinkedHashMap<>(pendingPaginations);
+        }
+        long now = System.currentTimeMillis();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, Settings> e : settings.entrySet()) {
+                    Settings s = e.getValue();
+                    ContentValues values = new ContentValues();
+                    values.put("fingerprint", e.getKey());
+                    values.put("title", s.title);
+                    values.put("font_size", s.fontSize);
+                    values.put("bookmark", s.bookmark);
+                    values.put("page", s.page);
+                    values.put("invert", s.invert ? 1 : 0);
+                    values.put("horizontal_scroll", s.horizontalScroll ? 1 : 0);
+                    values.put("used", now);
+                    db.insertWithOnConflict("documents", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                for (Map.Entry<String, PendingPagination> e : paginations.entrySet()) {
+                    PendingPagination p = e.getValue();
+                    ContentValues values = new ContentValues();
+                    values.put("fingerprint", p.fingerprint);
+                    values.put("layout", p.layoutKey);
+                    values.put("counts", toBytes(p.entry.counts));
+                    if (p.entry.outlinePages != null)
+                        values.put("outline_pages", toBytes(p.entry.outlinePages));
+                    else
+                        values.putNull("outline_pages");
+                    values.put("used", now);
+                    db.insertWithOnConflict("paginations", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                if (!paginations.isEmpty()) {
+                    // drop least recently written layouts, across all documents, beyond the budget
+                    db.execSQL("DELETE FROM paginations WHERE rowid IN (SELECT rowid FROM paginations "
+                            + "ORDER BY used DESC LIMIT -1 OFFSET " + MAX_PAGINATIONS + ")");
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException x) {
+            Log.w(APP, "Unable to write document state: " + x);
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Settings> e : settings.entrySet())
+                pendingSettings.remove(e.getKey(), e.getValue());
+            for (Map.Entry<String, PendingPagination> e : paginations.entrySet())
+                pendingPaginations.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private static byte[] toBytes(int[] values) {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 4);
+        buf.asIntBuffer().put(values);
+        return buf.array();
+    }
+
+    private static int[] toInts(byte[] bytes) {
+        int[] values = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+}
@@ -0,0 +1,47 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.SeekableInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Reads a document straight from an open file, with positional reads so
+ * that several streams (the main document and the worker documents) can
+ * share one channel, each with its own position. Nothing is copied onto
+ * the Java heap beyond the buffers fitz reads into. */
+public class FileChannelInputStream implements SeekableInputStream {
+    protected final FileChannel channel;
+    protected final long length;
+    protected long p;
+
+    public FileChannelInputStream(FileChannel channel) throws IOException {
+        this.channel = channel;
+        length = channel.size();
+    }
+
+    public long seek(long offset, int whence) throws IOException {
+        long newp = p;
+        switch (whence) {
+            case SEEK_SET -> newp = offset;
+            case SEEK_CUR -> newp = p + offset;
+            case SEEK_END -> newp = length + offset;
+        }
+        if (newp < 0)
+            throw new IOException("seek before start of file");
+        return p = newp;
+    }
+
+    public long position() {
+        return p;
+    }
+
+    public int read(byte[] buf) throws IOException {
+        if (p >= length)
+            return -1;
+        int n = channel.read(ByteBuffer.wrap(buf), p);
+        if (n > 0)
+            p += n;
+        return n;
+    }
+}
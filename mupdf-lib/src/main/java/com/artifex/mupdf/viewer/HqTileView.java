@@ -0,0 +1,244 @@
+package com.artifex.mupdf.viewer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/* HQ layer of a zoomed page. The page is rendered at discrete zoom levels a
+ * factor of sqrt(2) apart, cut into fixed size tiles, and only tiles exposed
+ * by a pan or zoom are rendered. Until they arrive, cached tiles of other
+ * levels are drawn scaled in their place, over the minimum zoom image. */
+class HqTileView extends View {
+    private static final int T = PageTileCache.TILE_SIZE;
+
+    private final PageView mHost;
+    private final MuPDFCore mCore;
+    private final PageTileCache mCache;
+    private final Point mParentSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+
+    private static class Pending {
+        final RenderJob render;
+        final Bitmap bm;
+
+        Pending(RenderJob render, Bitmap bm) {
+            this.render = render;
+            this.bm = bm;
+        }
+
+        void cancel(BitmapPool pool) {
+            render.cancel();
+            render.releaseWhenDone(pool, bm);
+        }
+    }
+
+    private final HashMap<Long, Pending> mPending = new HashMap<>();
+    private int mPage = -1;
+    private Point mMinSize;
+
+    /* A zoom level: the page size in pixels at that level and its tile grid. */
+    private static class Level {
+        final int level;
+        final int width, height;
+        final int cols, rows;
+        final float scale; // level pixels per view pixel
+
+        Level(int level, Point minSize, int viewWidth) {
+            float s = (float) Math.pow(2, level / 2.0);
+            this.level = level;
+            width = Math.round(minSize.x * s);
+            height = Math.round(minSize.y * s);
+            cols = (width + T - 1) / T;
+            rows = (height + T - 1) / T;
+            scale = (float) width / viewWidth;
+        }
+
+        /* Tiles covering an area in view coordinates; right and bottom exclusive. */
+        Rect tiles(Rect area) {
+            return new Rect(
+                    Math.max(0, (int) (area.left * scale / T)),
+                    Math.max(0, (int) (area.top * scale / T)),
+                    Math.min(cols, (int) Math.ceil(area.right * scale / T)),
+                    Math.min(rows, (int) Math.ceil(area.bottom * scale / T)));
+        }
+    }
+
+    HqTileView(Context c, PageView host, MuPDFCore core, PageTileCache cache, Point parentSize) {
+        super(c);
+        mHost = host;
+        mCore = core;
+        mCache = cache;
+        mParentSize = parentSize;
+    }
+
+    // Lowest level at least as sharp as the given zoom over minimum zoom
+    static int levelFor(float zoom) {
+        if (zoom <= 1)
+            return 0;
+        return Math.max(1, (int) Math.ceil(2 * Math.log(zoom) / Math.log(2) - 0.01));
+    }
+
+    /* Render the tiles covering the visible area of the page, in view
+     * coordinates, that are not cached yet; or all of them again if the
+     * page content has changed. */
+    void update(int page, Point minSize, Point viewSize, Rect visible, boolean redraw) {
+        if (page != mPage)
+            cancel();
+        mPage = page;
+        mMinSize = minSize;
+
+        Level lv = new Level(levelFor((float) viewSize.x / minSize.x), minSize, viewSize.x);
+        Rect range = lv.tiles(visible);
+        final float cx = visible.exactCenterX() * lv.scale / T;
+        final float cy = visible.exactCenterY() * lv.scale / T;
+
+        HashSet<Long> wanted = new HashSet<>();
+        ArrayList<Point> todo = new ArrayList<>();
+        for (int ty = range.top; ty < range.bottom; ty++) {
+            for (int tx = range.left; tx < range.right; tx++) {
+                wanted.add(PageTileCache.key(page, lv.level, tx, ty));
+                todo.add(new Point(tx, ty));
+            }
+        }
+
+        // Tiles scrolled or zoomed out of view are no longer worth rendering
+        Iterator<Map.Entry<Long, Pending>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pending> e = it.next();
+            if (!wanted.contains(e.getKey())) {
+                e.getValue().cancel(mCache.getPool());
+                it.remove();
+            }
+        }
+        if (redraw)
+            mCache.removePage(page, wanted);
+
+        // Centre of the screen first
+        todo.sort((a, b) -> Float.compare(
+                (a.x + 0.5f - cx) * (a.x + 0.5f - cx) + (a.y + 0.5f - cy) * (a.y + 0.5f - cy),
+                (b.x + 0.5f - cx) * (b.x + 0.5f - cx) + (b.y + 0.5f - cy) * (b.y + 0.5f - cy)));
+        for (Point t : todo) {
+            long key = PageTileCache.key(page, lv.level, t.x, t.y);
+            if (mPending.containsKey(key) || (!redraw && mCache.get(key) != null))
+                continue;
+            submit(key, lv, t.x, t.y, redraw);
+        }
+        invalidate();
+    }
+
+    private void submit(final long key, Level lv, int tx, int ty, boolean redraw) {
+        final BitmapPool pool = mCache.getPool();
+        final Bitmap bm = pool.acquire(T, T, Bitmap.Config.ARGB_8888);
+        CancellableTaskDefinition<Void, Boolean> task = redraw
+                ? mHost.getUpdatePageTask(bm, lv.width, lv.height, tx * T, ty * T, T, T)
+                : mHost.getDrawPageTask(bm, lv.width, lv.height, tx * T, ty * T, T, T);
+        final RenderJob render = new RenderJob(task);
+        final Pending pending = new Pending(render, bm);
+        mPending.put(key, pending);
+        render.job = mCore.getRenderScheduler().submit(RenderScheduler.Priority.HQ_PATCH, null, () -> {
+            Boolean result = render.run();
+            mHandler.post(() -> {
+                // whoever cancelled the render took care of its bitmap
+                if (mPending.get(key) != pending || render.task.isCancelled())
+                    return;
+                mPending.remove(key);
+                if (result != null && result) {
+                    mCache.put(key, bm);
+                    invalidate();
+                } else {
+                    pool.release(bm);
+                    mHost.setRenderError();
+                }
+            });
+        });
+    }
+
+    /* Abort outstanding tile renders; cached tiles stay. */
+    void cancel() {
+        for (Pending p : mPending.values())
+            p.cancel(mCache.getPool());
+        mPending.clear();
+    }
+
+    /* Stop showing tiles, as when the view is recycled for another page. */
+    void reset() {
+        cancel();
+        mPage = -1;
+        mMinSize = null;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mPage < 0 || mMinSize == null || getWidth() <= 0)
+            return;
+        int level = levelFor((float) getWidth() / mMinSize.x);
+        if (level == 0)
+            return;
+
+        // The part of the page on screen, with a tile of margin for small pans
+        Rect area = new Rect(-mHost.getLeft() - T, -mHost.getTop() - T,
+                mParentSize.x - mHost.getLeft() + T, mParentSize.y - mHost.getTop() + T);
+        if (!area.intersect(0, 0, getWidth(), getHeight()))
+            return;
+
+        mPaint.setColorFilter(PageView.themeFilter(MuPDFCore.getInvert()));
+        Path missing = drawLevel(canvas, new Level(level, mMinSize, getWidth()), area, true);
+        if (missing == null)
+            return;
+
+        // Fill the gaps from coarser levels, finest last, then from one level finer
+        Rect gaps = new Rect();
+        missing.computeBounds(mDst, true);
+        mDst.roundOut(gaps);
+        canvas.save();
+        canvas.clipPath(missing);
+        for (int m = 1; m < level; m++)
+            drawLevel(canvas, new Level(m, mMinSize, getWidth()), gaps, false);
+        drawLevel(canvas, new Level(level + 1, mMinSize, getWidth()), gaps, false);
+        canvas.restore();
+    }
+
+    /* Draw the cached tiles of a level over an area of the view. When asked,
+     * returns the outline of tiles that are not cached, or null if none. */
+    private Path drawLevel(Canvas canvas, Level lv, Rect area, boolean collectMissing) {
+        Path missing = null;
+        Rect range = lv.tiles(area);
+        for (int ty = range.top; ty < range.bottom; ty++) {
+            for (int tx = range.left; tx < range.right; tx++) {
+                int x = tx * T;
+                int y = ty * T;
+                // edge tiles extend past the page
+                mSrc.set(0, 0, Math.min(T, lv.width - x), Math.min(T, lv.height - y));
+                mDst.set(x / lv.scale, y / lv.scale,
+                        (x + mSrc.right) / lv.scale, (y + mSrc.bottom) / lv.scale);
+                Bitmap bm = mCache.get(PageTileCache.key(mPage, lv.level, tx, ty));
+                if (bm != null) {
+                    canvas.drawBitmap(bm, mSrc, mDst, mPaint);
+                } else if (collectMissing) {
+                    if (missing == null)
+                        missing = new Path();
+                    missing.addRect(mDst, Path.Direction.CW);
+                }
+            }
+        }
+        return missing;
+    }
+}
@@ -5,6 +5,7 @@ import com.artifex.mupdf.fitz.Cookie;
 public abstract class MuPDFCancellableTaskDefinition<Params, Result> implements CancellableTaskDefinition<Params, Result>
 {
 	private Cookie cookie;
+	private volatile boolean cancelled;
 
 	public MuPDFCancellableTaskDefinition()
 	{
@@ -12,8 +13,9 @@ public abstract class MuPDFCancellableTaskDefinition<Params, Result> implements
 	}
 
 	@Override
-	public void doCancel()
+	public synchronized void doCancel()
 	{
+		cancelled = true;
 		if (cookie == null)
 			return;
 
@@ -21,7 +23,15 @@ public abstract class MuPDFCancellableTaskDefinition<Params, Result> implements
 	}
 
 	@Override
-	public void doCleanup()
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/* Only call once doInBackground has returned or will never run; the
+	 * cookie must outlive any render using it. */
+	@Override
+	public synchronized void doCleanup()
 	{
 		if (cookie == null)
 			return;
@@ -33,6 +43,8 @@ public abstract class MuPDFCancellableTaskDefinition<Params, Result> implements
 	@Override
 	public final Result doInBackground(Params ... params)
 	{
+		if (cancelled)
+			return null;
 		return doInBackground(cookie, params);
 	}
 
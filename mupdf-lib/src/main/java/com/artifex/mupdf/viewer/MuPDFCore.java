@@ -2,11 +2,14 @@ package com.artifex.mupdf.viewer;
 
 import android.graphics.Bitmap;
 import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.artifex.mupdf.fitz.Cookie;
 import com.artifex.mupdf.fitz.DisplayList;
 import com.artifex.mupdf.fitz.Document;
 import com.artifex.mupdf.fitz.Link;
+import com.artifex.mupdf.fitz.Location;
 import com.artifex.mupdf.fitz.Matrix;
 import com.artifex.mupdf.fitz.Outline;
 import com.artifex.mupdf.fitz.Page;
@@ -14,34 +17,107 @@ import com.artifex.mupdf.fitz.Quad;
 import com.artifex.mupdf.fitz.Rect;
 import com.artifex.mupdf.fitz.RectI;
 import com.artifex.mupdf.fitz.SeekableInputStream;
+import com.artifex.mupdf.fitz.StructuredText;
 import com.artifex.mupdf.fitz.android.AndroidDrawDevice;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MuPDFCore {
+    /* Returned by makeBookmark when there is no document, and taken by the
+     * layout methods to mean no position to keep. */
+    public static final long NO_BOOKMARK = -1;
+
     private final int resolution;
     private Document doc;
     private Outline[] outline;
-    private int pageCount;
+    private volatile int pageCount;
     private final boolean reflowable;
-    private int currentPage;
-    private Page page;
-    private float pageWidth;
-    private float pageHeight;
-    private DisplayList displayList;
+
+    /* Numbering of pages across chapters; pages are loaded by chapter and
+     * page within the chapter, so chapters need only be laid out when they
+     * are counted or shown. */
+    private Pagination pagination;
+    private volatile boolean paginated;
+    private final Object paginatedMonitor = new Object();
+    /* The numbering the listener was last told about. */
+    private Pagination reported;
+    private PaginationListener paginationListener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /* Told on the UI thread how a layout started by startLayout is getting on. */
+    public interface PaginationListener {
+        /* The page holding the position kept across the layout can be shown. */
+        void onPageReady(int pageNumber);
+
+        /* More chapters have been counted, changing the number of pages and
+         * possibly renumbering pages. previous is the numbering of the last
+         * call, or of onPageReady, and current the numbering now; anything
+         * kept by page number moves from one to the other. */
+        void onPagesCounted(Pagination previous, Pagination current);
+    }
+
+    /* Loaded pages and display lists; keeps the current page and its
+     * neighbours alive while paging back and forth. */
+    private static final long PAGE_CACHE_BYTES = 24 * 1024 * 1024;
+    private static final int PAGE_CACHE_MIN_ENTRIES = 3;
+    private final PageCache pageCache = new PageCache(PAGE_CACHE_BYTES, PAGE_CACHE_MIN_ENTRIES);
+    private int layoutGeneration;
+    /* Chapters of a layout counted at once, each on its own worker document;
+     * a render thread is left free for the page on screen. */
+    private static final int COUNTERS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 2));
+    private boolean[] claimed = new boolean[0];
+    private int claimedGeneration = -1;
+    private int finishedGeneration = -1;
+
+    /* The document itself is not thread safe, so anything touching it (layout,
+     * page loads, links, search, outline) takes the write lock. Display lists
+     * are immutable once built and can be run by several render threads at
+     * once under the read lock; each thread gets its own cloned fitz context
+     * from the JNI layer and its own draw device. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final Lock readLock = lock.readLock();
+    private final Lock writeLock = lock.writeLock();
+
+    /* Shared by every view and task working on this document. */
+    private final RenderScheduler scheduler = new RenderScheduler();
+    private final BitmapPool bitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+    private final TextIndex textIndex = new TextIndex(this);
+
+    /* Extra handles on the document for parallel work; idle ones are kept
+     * for reuse until counting ends, memory runs low or the document is
+     * closed. */
+    private DocumentSource source;
+    private final ArrayList<Worker> idleWorkers = new ArrayList<>();
+    private Speculation speculation;
+    private boolean destroyed;
+    private String fingerprint;
+    private PageRenderDiskCache renderCache;
+    private PaginationCache paginationCache;
 
     /* Default to "A Format" pocket book size. */
     private int layoutW = 312;
     private int layoutH = 504;
     private int layoutEM = 10;
+    private boolean laidOut;
 
     private MuPDFCore(Document doc) {
         this.doc = doc;
-        doc.layout(layoutW, layoutH, layoutEM);
-        pageCount = doc.countPages();
         reflowable = doc.isReflowable();
         resolution = 160;
-        currentPage = -1;
+        doc.layout(layoutW, layoutH, layoutEM);
+        if (reflowable) {
+            // chapters are counted as they are shown, or once laid out for the screen
+            int[] estimates = new int[doc.countChapters()];
+            Arrays.fill(estimates, 1);
+            setPagination(new Pagination(estimates, 0));
+        } else {
+            setPagination(countAll());
+        }
+        reported = pagination.copy();
     }
 
     public MuPDFCore(byte[] buffer, String magic) {
@@ -64,9 +140,635 @@ public class MuPDFCore {
         return reflowable;
     }
 
+    /* Whether every chapter has been counted and pages have their final numbers. */
+    public boolean isPaginated() {
+        return paginated;
+    }
+
+    /* Wait up to the given time for the pages to have their final numbers,
+     * and tell whether they have. */
+    public boolean awaitPaginated(long millis) throws InterruptedException {
+        synchronized (paginatedMonitor) {
+            if (!paginated)
+                paginatedMonitor.wait(millis);
+            return paginated;
+        }
+    }
+
+    public void setPaginationListener(PaginationListener listener) {
+        paginationListener = listener;
+    }
+
+    public RenderScheduler getRenderScheduler() {
+        return scheduler;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public TextIndex getTextIndex() {
+        return textIndex;
+    }
+
+    public void setDocumentSource(DocumentSource source) {
+        synchronized (idleWorkers) {
+            this.source = source;
+        }
+    }
+
+    /* A separate handle on the document, laid out like the core's own, for
+     * use by one thread at a time. It stands apart from the core's lock, so
+     * several can run at once. */
+    public final class Worker {
+        private final Document doc;
+        private String layout;
+        private int textGeneration;
+
+        private Worker(Document doc) {
+            this.doc = doc;
+        }
+
+        /* Extract the text of a page and add it to the core's index. */
+        public TextIndex.PageText getPageText(int pageNum) {
+            TextIndex.PageText text;
+            Page page = null;
+            StructuredText st = null;
+            try {
+                page = doc.loadPage(locationOf(pageNum));
+                st = page.toStructuredText();
+                text = TextIndex.PageText.from(st);
+            } catch (RuntimeException e) {
+                // a page that will not load is searched as empty
+                text = TextIndex.PageText.EMPTY;
+            } finally {
+                if (st != null)
+                    st.destroy();
+                if (page != null)
+                    page.destroy();
+            }
+            textIndex.put(textGeneration, pageNum, text);
+            return text;
+        }
+    }
+
+    /* Null when the document cannot be opened again. */
+    public Worker acquireWorker() {
+        Worker worker = null;
+        DocumentSource source;
+        synchronized (idleWorkers) {
+            if (destroyed || this.source == null)
+                return null;
+            source = this.source;
+            if (!idleWorkers.isEmpty())
+                worker = idleWorkers.remove(idleWorkers.size() - 1);
+        }
+
+        int w, h, em, generation;
+        readLock.lock();
+        try {
+            w = layoutW;
+            h = layoutH;
+            em = layoutEM;
+            generation = textIndex.getGeneration();
+        } finally {
+            readLock.unlock();
+        }
+
+        try {
+            if (worker == null)
+                worker = new Worker(source.open());
+            String layout = layoutKey(w, h, em);
+            if (reflowable && !layout.equals(worker.layout)) {
+                worker.doc.layout(w, h, em);
+                worker.layout = layout;
+            }
+        } catch (RuntimeException e) {
+            if (worker != null)
+                worker.doc.destroy();
+            return null;
+        }
+        worker.textGeneration = generation;
+        return worker;
+    }
+
+    /* Close the handles no one is using; each holds a layout of the book. */
+    public void releaseIdleWorkers() {
+        ArrayList<Worker> idle;
+        synchronized (idleWorkers) {
+            idle = new ArrayList<>(idleWorkers);
+            idleWorkers.clear();
+        }
+        for (Worker worker : idle)
+            worker.doc.destroy();
+    }
+
+    public void releaseWorker(Worker worker) {
+        synchronized (idleWorkers) {
+            if (!destroyed) {
+                idleWorkers.add(worker);
+                return;
+            }
+        }
+        worker.doc.destroy();
+    }
+
+    /* Count layouts the reader may switch to next, each given as {w, h, em},
+     * so that switching finds them in the pagination cache. They are counted
+     * one chapter per background job on a document of their own, which is
+     * let go once done or stopped. Replaces any earlier speculation. */
+    public void speculate(List<int[]> layouts) {
+        Speculation started;
+        synchronized (idleWorkers) {
+            if (speculation != null)
+                speculation.stopped = true;
+            speculation = null;
+            if (destroyed || source == null || !reflowable || paginationCache == null || fingerprint == null)
+                return;
+            started = speculation = new Speculation(source, layouts);
+        }
+        scheduler.submit(RenderScheduler.Priority.BACKGROUND, null, started::step);
+    }
+
+    /* Give up on speculative layouts and the memory they hold, as when
+     * memory runs low. */
+    public void stopSpeculation() {
+        synchronized (idleWorkers) {
+            if (speculation != null)
+                speculation.stopped = true;
+            speculation = null;
+        }
+    }
+
+    private final class Speculation {
+        private final DocumentSource source;
+        private final ArrayList<int[]> layouts;
+        private Document doc;
+        private int[] counts;
+        private int chapter;
+        volatile boolean stopped;
+
+        Speculation(DocumentSource source, List<int[]> layouts) {
+            this.source = source;
+            this.layouts = new ArrayList<>(layouts);
+        }
+
+        /* Count one chapter, starting on the next layout not cached yet. */
+        synchronized void step() {
+            try {
+                if (!stopped && counts == null)
+                    next();
+                if (stopped || counts == null) {
+                    close();
+                    return;
+                }
+                counts[chapter] = doc.countPages(chapter);
+                if (++chapter == counts.length) {
+                    int[] l = layouts.remove(0);
+                    paginationCache.putCounts(fingerprint, layoutKey(l[0], l[1], l[2]), counts);
+                    counts = null;
+                }
+            } catch (RuntimeException e) {
+                close();
+                return;
+            }
+            scheduler.submit(RenderScheduler.Priority.BACKGROUND, null, this::step);
+        }
+
+        private void next() {
+            while (!layouts.isEmpty()) {
+                int[] l = layouts.get(0);
+                PaginationCache.Entry cached = paginationCache.get(fingerprint, layoutKey(l[0], l[1], l[2]));
+                if (cached == null)
+                    break;
+                layouts.remove(0);
+            }
+            if (layouts.isEmpty())
+                return;
+            if (doc == null)
+                doc = source.open();
+            int[] l = layouts.get(0);
+            doc.layout(l[0], l[1], l[2]);
+            counts = new int[doc.countChapters()];
+            chapter = 0;
+        }
+
+        /* Waits for a step in progress to end. */
+        synchronized void close() {
+            stopped = true;
+            if (doc != null)
+                doc.destroy();
+            doc = null;
+        }
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public PageRenderDiskCache getRenderCache() {
+        return fingerprint != null ? renderCache : null;
+    }
+
+    public void setRenderCache(PageRenderDiskCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
+    public void setPaginationCache(PaginationCache paginationCache) {
+        this.paginationCache = paginationCache;
+    }
+
+    /* Cached page counts of every chapter for the current layout, if this
+     * layout has been counted before. Caller holds the write lock. */
+    private PaginationCache.Entry cachedPagination() {
+        if (!reflowable || paginationCache == null || fingerprint == null)
+            return null;
+        PaginationCache.Entry entry = paginationCache.get(fingerprint, getLayoutKey());
+        if (entry == null || entry.counts.length != doc.countChapters())
+            return null;
+        return entry;
+    }
+
+    /* Number pages from the cache, or else count every chapter and cache
+     * the counts. Caller holds the write lock. */
+    private void paginate() {
+        PaginationCache.Entry cached = cachedPagination();
+        if (cached != null) {
+            setPagination(Pagination.of(cached.counts));
+        } else {
+            setPagination(countAll());
+            storePagination();
+        }
+        reported = pagination.copy();
+    }
+
+    /* Caller holds the write lock. */
+    private void storePagination() {
+        if (reflowable && paginationCache != null && fingerprint != null)
+            paginationCache.putCounts(fingerprint, getLayoutKey(), pagination.getCounts());
+    }
+
+    private static String layoutKey(int w, int h, int em) {
+        return w + "x" + h + "x" + em;
+    }
+
+    /* Identifies the current pagination of the document. */
+    public String getLayoutKey() {
+        readLock.lock();
+        try {
+            return layoutKey(layoutW, layoutH, layoutEM);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /* Identifies a minimum zoom render of a page in the on-disk cache, by
+     * chapter and page so it survives renumbering; null while the page's
+     * chapter has not been counted. */
+    public String getRenderCacheKey(int pageNum, int width, int height) {
+        readLock.lock();
+        try {
+            Location loc = pagination.toLocation(pageNum);
+            if (!pagination.isCounted(loc.chapter))
+                return null;
+            return loc.chapter + "." + loc.page + "_" + layoutW + "x" + layoutH + "x" + layoutEM
+                    + "_" + width + "x" + height;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /* Lay the document out again and count every chapter before returning. */
     public void updateLayout(int width, int height, int fontSize) {
-        doc.layout(width, height, fontSize);
-        pageCount = doc.countPages();
+        writeLock.lock();
+        try {
+            relayout(width, height, fontSize);
+            paginate();
+            loadOutline();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* A position that survives relayout: the chapter and an offset into its
+     * content rather than a page number. */
+    public long makeBookmark(int pageNum) {
+        writeLock.lock();
+        try {
+            if (doc == null)
+                return NO_BOOKMARK;
+            return doc.makeBookmark(locate(pageNum));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int layout(int oldPage, int w, int h, int em) {
+        writeLock.lock();
+        try {
+            if (w != layoutW || h != layoutH || em != layoutEM) {
+                System.out.println("LAYOUT: " + w + "," + h);
+                long mark = doc.makeBookmark(locate(oldPage));
+                relayout(w, h, em);
+                paginate();
+                loadOutline();
+                return pagination.toPageNumber(doc.findBookmark(mark));
+            }
+            return oldPage;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* Lay the document out again without blocking the caller, keeping the
+     * position of a page of the current layout. */
+    public void startLayout(int w, int h, int em, int oldPage) {
+        startLayout(w, h, em, oldPage, NO_BOOKMARK, -1);
+    }
+
+    /* Lay the document out again without blocking the caller, opening at a
+     * position saved with makeBookmark, possibly under another layout. */
+    public void startLayoutAtBookmark(int w, int h, int em, long mark) {
+        startLayout(w, h, em, -1, mark, -1);
+    }
+
+    /* Lay the document out again without blocking the caller, opening at a
+     * page of the new layout. */
+    public void startLayoutAtPage(int w, int h, int em, int newPage) {
+        startLayout(w, h, em, -1, NO_BOOKMARK, newPage);
+    }
+
+    /* The chapter holding the position is laid out and counted first and
+     * reported through onPageReady. The other chapters, after it and then
+     * before it, are counted in the background, several at once on worker
+     * documents, and reported through onPagesCounted. A layout counted
+     * before is numbered from the pagination cache at once, and the layout in
+     * place, once counted, is kept as is. */
+    private void startLayout(final int w, final int h, final int em, final int oldPage, final long bookmark, final int newPage) {
+        scheduler.submit(RenderScheduler.Priority.VISIBLE, null, () -> {
+            int generation;
+            int page;
+            boolean counting;
+            writeLock.lock();
+            try {
+                if (doc == null)
+                    return;
+                if (laidOut && w == layoutW && h == layoutH && em == layoutEM && pagination.isComplete()) {
+                    // a new activity on the same layout, as after a configuration change
+                    generation = layoutGeneration;
+                    counting = false;
+                    if (oldPage >= 0)
+                        page = clampPage(oldPage);
+                    else if (bookmark != NO_BOOKMARK)
+                        page = pagination.toPageNumber(doc.findBookmark(bookmark));
+                    else
+                        page = clampPage(newPage);
+                } else {
+                    Pagination previous = pagination;
+                    int oldW = layoutW, oldH = layoutH, oldEM = layoutEM;
+                    long mark = oldPage >= 0 ? doc.makeBookmark(locate(oldPage)) : bookmark;
+
+                    relayout(w, h, em);
+                    laidOut = true;
+                    generation = layoutGeneration;
+                    PaginationCache.Entry cached = cachedPagination();
+                    counting = cached == null;
+                    if (counting) {
+                        page = startPagination(previous, oldW, oldH, oldEM, mark, newPage);
+                    } else {
+                        setPagination(Pagination.of(cached.counts));
+                        page = mark != NO_BOOKMARK ? pagination.toPageNumber(doc.findBookmark(mark)) : clampPage(newPage);
+                    }
+                }
+                // posted under the lock, so no count of the layout is reported before it
+                reported = pagination.copy();
+                final int ready = page;
+                handler.post(() -> {
+                    if (paginationListener != null)
+                        paginationListener.onPageReady(ready);
+                });
+            } finally {
+                writeLock.unlock();
+            }
+
+            if (counting)
+                startCounting(generation);
+            else
+                textIndex.resume();
+        });
+    }
+
+    /* Count the anchor chapter, holding the bookmarked position or the page
+     * asked for, and number the others on estimates. Returns the page
+     * number of the position. Caller holds the write lock. */
+    private int startPagination(Pagination previous, int oldW, int oldH, int oldEM, long mark, int newPage) {
+        int w = layoutW, h = layoutH, em = layoutEM;
+        int chapters = doc.countChapters();
+        int[] counts = new int[chapters];
+        Arrays.fill(counts, -1);
+
+        Location anchor = null;
+        if (mark != NO_BOOKMARK) {
+            anchor = doc.findBookmark(mark);
+            if (anchor.chapter < 0 || anchor.chapter >= chapters)
+                anchor = null;
+        } else {
+            // count from the start up to the page asked for
+            int total = 0;
+            for (int c = 0; c < chapters && anchor == null; c++) {
+                counts[c] = doc.countPages(c);
+                if (total + counts[c] > newPage)
+                    anchor = new Location(c, Math.max(0, newPage - total));
+                total += counts[c];
+            }
+        }
+        if (anchor == null)
+            anchor = mark != NO_BOOKMARK ? new Location(0, 0) : new Location(Math.max(0, chapters - 1), Integer.MAX_VALUE);
+        if (chapters > 0 && counts[anchor.chapter] < 0)
+            counts[anchor.chapter] = doc.countPages(anchor.chapter);
+
+        int fallback = chapters > 0 ? Math.max(1, counts[anchor.chapter]) : 1;
+        double scale = (double) em * em / ((double) oldEM * oldEM) * ((double) oldW * oldH) / ((double) w * h);
+        Pagination p = new Pagination(estimate(previous, scale, counts, fallback), anchor.chapter);
+        for (int c = 0; c < chapters; c++)
+            if (counts[c] >= 0)
+                p.setCount(c, counts[c]);
+        setPagination(p);
+        return p.toPageNumber(anchor);
+    }
+
+    /* Page counts to number uncounted chapters with: the counts they had in
+     * the previous layout scaled by the change in text per page, or else the
+     * count of the anchor chapter. Known counts are kept. */
+    private static int[] estimate(Pagination previous, double scale, int[] counts, int fallback) {
+        int[] estimates = new int[counts.length];
+        boolean scalable = previous != null && previous.countChapters() == counts.length;
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] >= 0)
+                estimates[c] = counts[c];
+            else if (scalable && previous.getCount(c) >= 0)
+                estimates[c] = Math.max(1, (int) Math.round(previous.getCount(c) * scale));
+            else
+                estimates[c] = fallback;
+        }
+        return estimates;
+    }
+
+    /* Count the remaining chapters of a layout on worker documents, several
+     * at once, so a long book is numbered in a fraction of the time. */
+    private void startCounting(int generation) {
+        for (int i = 0; i < COUNTERS; i++)
+            countNextChapter(generation);
+    }
+
+    /* One chapter per job, so renders get in between. The chapter is counted
+     * on a worker document without holding the core's lock, and on the
+     * core's own document only if no worker can be had. */
+    private void countNextChapter(final int generation) {
+        scheduler.submit(RenderScheduler.Priority.PAGE_SIZE, null, () -> {
+            int chapter;
+            writeLock.lock();
+            try {
+                if (doc == null || generation != layoutGeneration)
+                    return;
+                chapter = claimChapter();
+                // the other counters count the rest
+                if (chapter < 0 && !pagination.isComplete())
+                    return;
+            } finally {
+                writeLock.unlock();
+            }
+
+            int count = -1;
+            if (chapter >= 0) {
+                Worker worker = acquireWorker();
+                if (worker != null) {
+                    try {
+                        count = worker.doc.countPages(chapter);
+                    } catch (RuntimeException e) {
+                        count = -1;
+                    } finally {
+                        releaseWorker(worker);
+                    }
+                }
+            }
+
+            boolean complete;
+            writeLock.lock();
+            try {
+                if (doc == null || generation != layoutGeneration)
+                    return;
+                if (chapter >= 0 && !pagination.isCounted(chapter))
+                    counted(chapter, count >= 0 ? count : doc.countPages(chapter));
+                complete = pagination.isComplete();
+                if (complete) {
+                    // only one counter finishes the layout
+                    if (finishedGeneration == layoutGeneration)
+                        return;
+                    finishedGeneration = layoutGeneration;
+                    if (!paginated) {
+                        setPagination(pagination.finish());
+                        outline = null;
+                    }
+                    storePagination();
+                }
+                reportCounts();
+            } finally {
+                writeLock.unlock();
+            }
+
+            if (complete) {
+                // the counters' handles are not needed until the next layout
+                releaseIdleWorkers();
+                textIndex.resume();
+            } else {
+                countNextChapter(generation);
+            }
+        });
+    }
+
+    /* The next chapter to count, after the anchor and then before it, or -1
+     * if every chapter is counted or being counted. Caller holds the write
+     * lock. */
+    private int claimChapter() {
+        int n = pagination.countChapters();
+        if (claimedGeneration != layoutGeneration || claimed.length != n) {
+            claimed = new boolean[n];
+            claimedGeneration = layoutGeneration;
+        }
+        int anchor = pagination.getAnchor();
+        for (int i = 1; i <= n; i++) {
+            int c = (anchor + i) % n;
+            if (!pagination.isCounted(c) && !claimed[c]) {
+                claimed[c] = true;
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /* Caller holds the write lock. */
+    private void relayout(int w, int h, int em) {
+        layoutW = w;
+        layoutH = h;
+        layoutEM = em;
+        invalidatePages();
+        doc.layout(w, h, em);
+        outline = null;
+    }
+
+    /* Caller holds the write lock. */
+    private Pagination countAll() {
+        int[] counts = new int[doc.countChapters()];
+        for (int c = 0; c < counts.length; c++)
+            counts[c] = doc.countPages(c);
+        return Pagination.of(counts);
+    }
+
+    /* Caller holds the write lock. */
+    private void setPagination(Pagination p) {
+        pagination = p;
+        pageCount = p.countPages();
+        setPaginated(p.isFinal());
+        textIndex.reset(pageCount);
+    }
+
+    /* Caller holds the write lock. */
+    private void setPaginated(boolean paginated) {
+        synchronized (paginatedMonitor) {
+            this.paginated = paginated;
+            if (paginated)
+                paginatedMonitor.notifyAll();
+        }
+    }
+
+    /* Caller holds the write lock. */
+    private void counted(int chapter, int count) {
+        pagination.setCount(chapter, count);
+        pageCount = pagination.countPages();
+        setPaginated(pagination.isFinal());
+        textIndex.reset(pageCount);
+    }
+
+    /* Tell the listener how the numbering has changed since it was last
+     * told. Posted under the lock, so reports arrive in order. Caller holds
+     * the write lock. */
+    private void reportCounts() {
+        final Pagination previous = reported;
+        final Pagination current = pagination.copy();
+        reported = current;
+        handler.post(() -> {
+            if (paginationListener != null)
+                paginationListener.onPagesCounted(previous, current);
+        });
+    }
+
+    /* Caller holds the write lock. */
+    private void loadOutline() {
         outline = null;
         try {
             outline = doc.loadOutline();
@@ -75,73 +777,160 @@ public class MuPDFCore {
         }
     }
 
-    public synchronized int layout(int oldPage, int w, int h, int em) {
-        if (w != layoutW || h != layoutH || em != layoutEM) {
-            System.out.println("LAYOUT: " + w + "," + h);
-            layoutW = w;
-            layoutH = h;
-            layoutEM = em;
-            long mark = doc.makeBookmark(doc.locationFromPageNumber(oldPage));
-            doc.layout(layoutW, layoutH, layoutEM);
-            currentPage = -1;
-            pageCount = doc.countPages();
-            outline = null;
+    /* Pages loaded for a previous layout are paginated differently; drop them all. */
+    private void invalidatePages() {
+        pageCache.clear();
+        ++layoutGeneration;
+    }
+
+    private int clampPage(int pageNum) {
+        if (pageNum > pageCount - 1)
+            return pageCount - 1;
+        return Math.max(pageNum, 0);
+    }
+
+    /* Chapter and page of a page number, counting its chapter first if that
+     * has not been done yet. Caller holds the write lock. */
+    private Location locate(int pageNum) {
+        Location loc = pagination.toLocation(clampPage(pageNum));
+        if (pagination.isCounted(loc.chapter))
+            return loc;
+        while (!pagination.isCounted(loc.chapter)) {
+            counted(loc.chapter, doc.countPages(loc.chapter));
+            loc = pagination.toLocation(clampPage(pageNum));
+        }
+        // counted ahead of the background counters; pages may have moved
+        reportCounts();
+        return loc;
+    }
+
+    /* Chapter and page of a page number as currently numbered. */
+    public Location locationOf(int pageNum) {
+        readLock.lock();
+        try {
+            return pagination.toLocation(clampPage(pageNum));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pageNumberOf(Location loc) {
+        readLock.lock();
+        try {
+            return pagination.toPageNumber(loc);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /* Cached entry for a page number, if its chapter has been counted.
+     * Caller holds the read or write lock. */
+    private PageCache.Entry cachedPage(int pageNum) {
+        Location loc = pagination.toLocation(clampPage(pageNum));
+        if (!pagination.isCounted(loc.chapter))
+            return null;
+        return pageCache.get(layoutGeneration, PageCache.id(loc.chapter, loc.page));
+    }
+
+    /* Caller holds the write lock. */
+    private PageCache.Entry gotoPage(int pageNum) {
+        if (doc == null)
+            return null;
+        Location loc = locate(pageNum);
+        long id = PageCache.id(loc.chapter, loc.page);
+        PageCache.Entry entry = pageCache.get(layoutGeneration, id);
+        if (entry == null) {
+            entry = new PageCache.Entry(layoutGeneration, id, doc.loadPage(loc));
+            pageCache.put(entry);
+        }
+        return entry;
+    }
+
+    /* Caller holds the write lock. */
+    private DisplayList getDisplayList(PageCache.Entry entry) {
+        if (entry.displayList == null) {
             try {
-                outline = doc.loadOutline();
+                pageCache.setDisplayList(entry, entry.page.toDisplayList());
             } catch (Exception ex) {
-                /* ignore error */
+                return null;
             }
-            return doc.pageNumberFromLocation(doc.findBookmark(mark));
         }
-        return oldPage;
+        return entry.displayList;
     }
 
-    private synchronized void gotoPage(int pageNum) {
-        /* TODO: page cache */
-        if (pageNum > pageCount - 1)
-            pageNum = pageCount - 1;
-        else if (pageNum < 0)
-            pageNum = 0;
-        if (pageNum != currentPage) {
-            if (page != null)
-                page.destroy();
-            page = null;
-            if (displayList != null)
-                displayList.destroy();
-            displayList = null;
-            page = null;
-            pageWidth = 0;
-            pageHeight = 0;
-            currentPage = -1;
-
-            if (doc != null) {
-                page = doc.loadPage(pageNum);
-                Rect b = page.getBounds();
-                pageWidth = b.x1 - b.x0;
-                pageHeight = b.y1 - b.y0;
-            }
+    /* Returns with the read lock held and the entry's display list built, or
+     * null. The entry cannot be evicted until the read lock is released. */
+    private PageCache.Entry lockDisplayList(int pageNum) {
+        readLock.lock();
+        PageCache.Entry entry = cachedPage(pageNum);
+        if (entry != null && entry.displayList != null)
+            return entry;
+        readLock.unlock();
 
-            currentPage = pageNum;
+        writeLock.lock();
+        try {
+            entry = gotoPage(pageNum);
+            if (entry != null && getDisplayList(entry) == null)
+                entry = null;
+            // downgrade to the read lock before letting other writers in
+            readLock.lock();
+        } finally {
+            writeLock.unlock();
         }
+        return entry;
     }
 
-    public synchronized PointF getPageSize(int pageNum) {
-        gotoPage(pageNum);
-        return new PointF(pageWidth, pageHeight);
+    public PointF getPageSize(int pageNum) {
+        readLock.lock();
+        try {
+            PageCache.Entry entry = cachedPage(pageNum);
+            if (entry != null)
+                return new PointF(entry.width, entry.height);
+        } finally {
+            readLock.unlock();
+        }
+
+        writeLock.lock();
+        try {
+            PageCache.Entry entry = gotoPage(pageNum);
+            if (entry == null)
+                return new PointF(0, 0);
+            return new PointF(entry.width, entry.height);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
-    public synchronized void onDestroy() {
-        if (displayList != null)
-            displayList.destroy();
-        displayList = null;
-        if (page != null)
-            page.destroy();
-        page = null;
-        if (doc != null)
-            doc.destroy();
-        doc = null;
+    public void onDestroy() {
+        Speculation speculating;
+        synchronized (idleWorkers) {
+            destroyed = true;
+            speculating = speculation;
+        }
+        stopSpeculation();
+        // the step that would have closed it is dropped with the scheduler's queue
+        if (speculating != null)
+            speculating.close();
+        synchronized (idleWorkers) {
+            for (Worker worker : idleWorkers)
+                worker.doc.destroy();
+            idleWorkers.clear();
+        }
+        scheduler.shutdown();
+        bitmapPool.clear();
+        writeLock.lock();
+        try {
+            pageCache.clear();
+            if (doc != null)
+                doc.destroy();
+            doc = null;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
+    /* Dark theme. Pages are always rendered light; the theme is applied as
+     * they are drawn, so it is not part of any render or cache key. */
     private static boolean invertRender = false;
 
     public static void toggleInvertRender() {
@@ -157,43 +946,37 @@ public class MuPDFCore {
     }
 
 
-    public synchronized void drawPage(Bitmap bm, int pageNum,
-                                      int pageW, int pageH,
-                                      int patchX, int patchY,
-                                      int patchW, int patchH,
-                                      Cookie cookie) {
-        gotoPage(pageNum);
-
-        if (displayList == null && page != null)
-            try {
-                displayList = page.toDisplayList();
-            } catch (Exception ex) {
-                displayList = null;
-            }
-
-        if (displayList == null || page == null)
-            return;
+    public void drawPage(Bitmap bm, int pageNum,
+                         int pageW, int pageH,
+                         int patchX, int patchY,
+                         int patchW, int patchH,
+                         Cookie cookie) {
+        PageCache.Entry entry = lockDisplayList(pageNum);
+        try {
+            if (entry == null)
+                return;
 
-        float zoom = (float) resolution / 72;
-        Matrix ctm = new Matrix(zoom, zoom);
-        RectI bbox = new RectI(page.getBounds().transform(ctm));
+            float zoom = (float) resolution / 72;
+            Matrix ctm = new Matrix(zoom, zoom);
+            RectI bbox = new RectI(new Rect(entry.bounds).transform(ctm));
 
-        float xscale = (float) pageW / (float) (bbox.x1 - bbox.x0);
-        float yscale = (float) pageH / (float) (bbox.y1 - bbox.y0);
-        ctm.scale(xscale, yscale);
+            float xscale = (float) pageW / (float) (bbox.x1 - bbox.x0);
+            float yscale = (float) pageH / (float) (bbox.y1 - bbox.y0);
+            ctm.scale(xscale, yscale);
 
-        AndroidDrawDevice dev = new AndroidDrawDevice(bm, patchX, patchY);
-        try {
-            displayList.run(dev, ctm, cookie);
-            if (invertRender)
-                dev.invertLuminance();
-            dev.close();
+            AndroidDrawDevice dev = new AndroidDrawDevice(bm, patchX, patchY);
+            try {
+                entry.displayList.run(dev, ctm, cookie);
+                dev.close();
+            } finally {
+                dev.destroy();
+            }
         } finally {
-            dev.destroy();
+            readLock.unlock();
         }
     }
 
-    public synchronized void updatePage(Bitmap bm, int pageNum,
+    public void updatePage(Bitmap bm, int pageNum,
                                         int pageW, int pageH,
                                         int patchX, int patchY,
                                         int patchW, int patchH,
@@ -201,45 +984,119 @@ public class MuPDFCore {
         drawPage(bm, pageNum, pageW, pageH, patchX, patchY, patchW, patchH, cookie);
     }
 
-    public synchronized Link[] getPageLinks(int pageNum) {
-        gotoPage(pageNum);
-        return page != null ? page.getLinks() : null;
+    public Link[] getPageLinks(int pageNum) {
+        writeLock.lock();
+        try {
+            PageCache.Entry entry = gotoPage(pageNum);
+            return entry != null ? entry.page.getLinks() : null;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
-    public synchronized int resolveLink(Link link) {
-        return doc.pageNumberFromLocation(doc.resolveLink(link));
+    public int resolveLink(Link link) {
+        writeLock.lock();
+        try {
+            return pagination.toPageNumber(doc.resolveLink(link));
+        } finally {
+            writeLock.unlock();
+        }
     }
 
-    public synchronized Quad[][] searchPage(int pageNum, String text) {
-        gotoPage(pageNum);
-        return page.search(text);
+    public Quad[][] searchPage(int pageNum, String text) {
+        writeLock.lock();
+        try {
+            PageCache.Entry entry = gotoPage(pageNum);
+            return entry != null ? entry.page.search(text) : null;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
-    public synchronized boolean hasOutline() {
-        if (outline == null) {
+    /* Text of a page from the index, extracting and adding it first if
+     * needed. Pages loaded just for this bypass the page cache so indexing
+     * does not evict the pages being read. */
+    public TextIndex.PageText getPageText(int pageNum) {
+        TextIndex.PageText text = textIndex.get(pageNum);
+        if (text != null)
+            return text;
+        writeLock.lock();
+        try {
+            pageNum = clampPage(pageNum);
+            text = textIndex.get(pageNum);
+            if (text != null || doc == null)
+                return text;
+            Location loc = locate(pageNum);
+            PageCache.Entry entry = pageCache.get(layoutGeneration, PageCache.id(loc.chapter, loc.page));
+            Page page = entry != null ? entry.page : doc.loadPage(loc);
+            StructuredText st = null;
             try {
-                outline = doc.loadOutline();
-            } catch (Exception ex) {
-                /* ignore error */
+                st = page.toStructuredText();
+                text = TextIndex.PageText.from(st);
+            } catch (RuntimeException e) {
+                text = TextIndex.PageText.EMPTY;
+            } finally {
+                if (st != null)
+                    st.destroy();
+                if (entry == null)
+                    page.destroy();
             }
+            textIndex.put(textIndex.getGeneration(), pageNum, text);
+            return text;
+        } finally {
+            writeLock.unlock();
         }
-        return outline != null;
     }
 
-    private void flattenOutlineNodes(ArrayList<OutlineActivity.Item> result, Outline[] list, String indent) {
-        for (Outline node : list) {
-            if (node.title != null) {
-                int page = doc.pageNumberFromLocation(doc.resolveLink(node));
-                result.add(new OutlineActivity.Item(indent + node.title, page));
-            }
-            if (node.down != null)
-                flattenOutlineNodes(result, node.down, indent + "    ");
+    public boolean hasOutline() {
+        writeLock.lock();
+        try {
+            if (outline == null)
+                loadOutline();
+            return outline != null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* The outline with pages cached for the layout, if there are any, or
+     * null if the document has none. */
+    public OutlineModel getOutlineModel() {
+        writeLock.lock();
+        try {
+            if (outline == null)
+                loadOutline();
+            if (outline == null)
+                return null;
+            PaginationCache.Entry cached = paginated ? cachedPagination() : null;
+            return new OutlineModel(this, outline, getLayoutKey(), paginated,
+                    cached != null ? cached.outlinePages : null);
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    public synchronized ArrayList<OutlineActivity.Item> getOutline() {
-        ArrayList<OutlineActivity.Item> result = new ArrayList<>();
-        flattenOutlineNodes(result, outline, "");
-        return result;
+    int resolveOutlinePage(Outline node) {
+        writeLock.lock();
+        try {
+            if (doc == null)
+                return 0;
+            return pagination.toPageNumber(doc.resolveLink(node));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* Cache the pages of an outline resolved under a layout, if that is
+     * still the layout and its pages have their final numbers. */
+    void storeOutlinePages(String layoutKey, int[] pages) {
+        writeLock.lock();
+        try {
+            if (doc == null || !paginated || !layoutKey.equals(getLayoutKey()) || cachedPagination() == null)
+                return;
+            paginationCache.putOutlinePages(fingerprint, layoutKey, pages);
+        } finally {
+            writeLock.unlock();
+        }
     }
 }
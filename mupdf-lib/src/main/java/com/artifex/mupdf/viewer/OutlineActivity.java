@@ -2,62 +2,120 @@ package com.artifex.mupdf.viewer;
 
 import android.app.ListActivity;
 import android.os.Bundle;
+import android.util.TypedValue;
+import android.view.Gravity;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
 import android.widget.ListView;
+import android.widget.TextView;
 
-import java.io.Serializable;
-import java.util.List;
-
+/* Shows the outline a level at a time; entries with children expand when
+ * their arrow is tapped, and pages appear as they are resolved. */
 public class OutlineActivity extends ListActivity {
-    public static class Item implements Serializable {
-        public String title;
-        public int page;
-
-        public Item(String title, int page) {
-            this.title = title;
-            this.page = page;
-        }
-
-        public String toString() {
-            return title;
-        }
-    }
-
-    protected ArrayAdapter<Item> adapter;
+    protected OutlineModel model;
+    protected BaseAdapter adapter;
+    private boolean picked;
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
 
-        adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
-        setListAdapter(adapter);
-
         int idx = getIntent().getIntExtra("PALLETBUNDLE", -1);
         Bundle bundle = Pallet.receiveBundle(idx);
-        if (bundle != null) {
-            int currentPage = bundle.getInt("POSITION");
-            List<Item> outline = (List<Item>) bundle.getSerializable("OUTLINE");
-            int found = -1;
-            if (outline != null) {
-                for (int i = 0; i < outline.size(); ++i) {
-                    Item item = outline.get(i);
-                    if (found < 0 && item.page >= currentPage)
-                        found = i;
-                    adapter.add(item);
-                }
-            }
-            if (found >= 0)
-                setSelection(found);
+        if (bundle != null)
+            model = (OutlineModel) Pallet.receive(bundle.getInt("OUTLINE", -1));
+        if (model == null) {
+            // the model does not outlive the process
+            finish();
+            return;
         }
+
+        adapter = new OutlineAdapter();
+        setListAdapter(adapter);
+        model.setListener(adapter::notifyDataSetChanged);
+
+        int currentPage = bundle.getInt("POSITION");
+        model.reveal(currentPage, row -> {
+            if (row >= 0)
+                setSelection(row);
+        });
+    }
+
+    protected void onDestroy() {
+        if (model != null)
+            model.setListener(null);
+        super.onDestroy();
     }
 
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        Item item = adapter.getItem(position);
-        setResult(RESULT_FIRST_USER + item.page);
-        finish();
+        if (picked)
+            return;
+        picked = true;
+        model.resolve(model.getRow(position), page -> {
+            if (isFinishing())
+                return;
+            setResult(RESULT_FIRST_USER + page);
+            finish();
+        });
+    }
+
+    private int dp(int n) {
+        return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, n, getResources().getDisplayMetrics());
+    }
+
+    private class OutlineAdapter extends BaseAdapter {
+        public int getCount() {
+            return model.getCount();
+        }
+
+        public Object getItem(int position) {
+            return model.getRow(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(final int position, View convertView, ViewGroup parent) {
+            LinearLayout row = (LinearLayout) convertView;
+            if (row == null) {
+                row = new LinearLayout(OutlineActivity.this);
+                row.setOrientation(LinearLayout.HORIZONTAL);
+                row.setGravity(Gravity.CENTER_VERTICAL);
+                row.setMinimumHeight(dp(48));
+                TextView toggle = new TextView(OutlineActivity.this);
+                toggle.setGravity(Gravity.CENTER);
+                toggle.setTextSize(TypedValue.COMPLEX_UNIT_SP, 18);
+                row.addView(toggle, new LinearLayout.LayoutParams(dp(40), ViewGroup.LayoutParams.MATCH_PARENT));
+                TextView title = new TextView(OutlineActivity.this);
+                title.setTextSize(TypedValue.COMPLEX_UNIT_SP, 18);
+                row.addView(title, new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.WRAP_CONTENT, 1));
+                TextView page = new TextView(OutlineActivity.this);
+                page.setPadding(dp(8), 0, dp(16), 0);
+                row.addView(page, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            }
+            TextView toggle = (TextView) row.getChildAt(0);
+            TextView title = (TextView) row.getChildAt(1);
+            TextView page = (TextView) row.getChildAt(2);
+
+            OutlineModel.Node node = model.getRow(position);
+            row.setPadding(dp(16) * node.getDepth(), 0, 0, 0);
+            if (node.hasChildren()) {
+                toggle.setText(node.isExpanded() ? "\u25be" : "\u25b8");
+                toggle.setOnClickListener(v -> model.toggle(position));
+            } else {
+                toggle.setText(null);
+                toggle.setOnClickListener(null);
+                toggle.setClickable(false);
+            }
+            title.setText(node.getTitle());
+            page.setText(node.getPage() >= 0 ? String.valueOf(node.getPage() + 1) : null);
+            return row;
+        }
     }
 }
@@ -0,0 +1,258 @@
+package com.artifex.mupdf.viewer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.artifex.mupdf.fitz.Outline;
+
+import java.util.ArrayList;
+
+/* The document outline as a tree that is shown a level at a time. Page
+ * numbers are resolved lazily in the background, for the rows that are
+ * looked at, since resolving a link may lay out its chapter. Rows, expansion
+ * and the listener belong to the UI thread. */
+public class OutlineModel {
+    /* Links resolved per background job, so renders get in between. */
+    private static final int RESOLVE_BATCH = 16;
+
+    public interface Listener {
+        /* Rows were expanded or collapsed, or pages were resolved. */
+        void onOutlineChanged();
+    }
+
+    public interface RevealCallback {
+        void onRevealed(int row);
+    }
+
+    public interface ResolveCallback {
+        void onResolved(int page);
+    }
+
+    public static final class Node {
+        final Outline outline;
+        final int index; // position in a depth first walk of the tree
+        final int depth;
+        final Node[] children;
+        boolean expanded;
+        boolean queued;
+        volatile int page = -1;
+
+        Node(Outline outline, int index, int depth, Node[] children) {
+            this.outline = outline;
+            this.index = index;
+            this.depth = depth;
+            this.children = children;
+        }
+
+        public String getTitle() {
+            return outline.title;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public boolean hasChildren() {
+            return children.length > 0;
+        }
+
+        public boolean isExpanded() {
+            return expanded;
+        }
+
+        /* Page number, or -1 until resolved. */
+        public int getPage() {
+            return page;
+        }
+    }
+
+    private final MuPDFCore core;
+    private final String layoutKey;
+    private final boolean settled;
+    private final Node[] roots;
+    private final Node[] nodes;
+    private final ArrayList<Node> rows = new ArrayList<>();
+    private final ArrayList<Node> pending = new ArrayList<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean resolving;
+    private int resolved;
+    private Listener listener;
+
+    /* Pages cached for the layout, if any, are indexed like nodes. Created
+     * by MuPDFCore with its lock held. */
+    OutlineModel(MuPDFCore core, Outline[] outline, String layoutKey, boolean settled, int[] pages) {
+        this.core = core;
+        this.layoutKey = layoutKey;
+        this.settled = settled;
+        ArrayList<Node> all = new ArrayList<>();
+        roots = build(outline, 0, all);
+        nodes = all.toArray(new Node[0]);
+        if (pages != null && pages.length == nodes.length) {
+            for (int i = 0; i < pages.length; i++)
+                nodes[i].page = pages[i];
+            resolved = nodes.length;
+        }
+        rebuildRows();
+    }
+
+    /* Entries without a title are left out, their children taking their
+     * place one level further in. */
+    private static Node[] build(Outline[] list, int depth, ArrayList<Node> all) {
+        if (list == null)
+            return new Node[0];
+        ArrayList<Node> result = new ArrayList<>();
+        for (Outline entry : list) {
+            if (entry.title == null) {
+                for (Node child : build(entry.down, depth + 1, all))
+                    result.add(child);
+                continue;
+            }
+            int index = all.size();
+            all.add(null);
+            Node node = new Node(entry, index, depth, build(entry.down, depth + 1, all));
+            all.set(index, node);
+            result.add(node);
+        }
+        return result.toArray(new Node[0]);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getCount() {
+        return rows.size();
+    }
+
+    /* A visible row; its page is asked for in the background if unknown. */
+    public Node getRow(int row) {
+        Node node = rows.get(row);
+        request(node);
+        return node;
+    }
+
+    public void toggle(int row) {
+        Node node = rows.get(row);
+        if (!node.hasChildren())
+            return;
+        node.expanded = !node.expanded;
+        rebuildRows();
+        notifyChanged();
+    }
+
+    private void rebuildRows() {
+        rows.clear();
+        addRows(roots);
+    }
+
+    private void addRows(Node[] list) {
+        for (Node node : list) {
+            rows.add(node);
+            if (node.expanded)
+                addRows(node.children);
+        }
+    }
+
+    private void notifyChanged() {
+        if (listener != null)
+            listener.onOutlineChanged();
+    }
+
+    /* Page of a node, resolved in the background if need be, since that
+     * takes the document's lock. The callback runs on the UI thread. */
+    public void resolve(final Node node, final ResolveCallback callback) {
+        if (node.page >= 0) {
+            callback.onResolved(node.page);
+            return;
+        }
+        core.getRenderScheduler().submit(RenderScheduler.Priority.VISIBLE, null, () -> {
+            int page = resolve(node);
+            handler.post(() -> callback.onResolved(page));
+        });
+    }
+
+    /* Page of a node, resolved now if need be. */
+    private int resolve(Node node) {
+        synchronized (node) {
+            if (node.page < 0) {
+                node.page = core.resolveOutlinePage(node.outline);
+                countResolved();
+            }
+            return node.page;
+        }
+    }
+
+    private void request(Node node) {
+        if (node.page >= 0 || node.queued)
+            return;
+        node.queued = true;
+        synchronized (pending) {
+            pending.add(node);
+            if (resolving)
+                return;
+            resolving = true;
+        }
+        core.getRenderScheduler().submit(RenderScheduler.Priority.BACKGROUND, null, this::resolvePending);
+    }
+
+    private void resolvePending() {
+        for (int i = 0; i < RESOLVE_BATCH; i++) {
+            Node node;
+            synchronized (pending) {
+                if (pending.isEmpty())
+                    break;
+                node = pending.remove(pending.size() - 1); // most recently shown first
+            }
+            resolve(node);
+        }
+        handler.post(this::notifyChanged);
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                resolving = false;
+                return;
+            }
+        }
+        core.getRenderScheduler().submit(RenderScheduler.Priority.BACKGROUND, null, this::resolvePending);
+    }
+
+    /* Once every page is known they are cached for the layout. */
+    private void countResolved() {
+        int[] pages;
+        synchronized (this) {
+            if (++resolved != nodes.length || !settled)
+                return;
+            pages = new int[nodes.length];
+            for (int i = 0; i < pages.length; i++)
+                pages[i] = nodes[i].page;
+        }
+        core.storeOutlinePages(layoutKey, pages);
+    }
+
+    /* Expand the entries leading to a page, resolving only the siblings
+     * along the way, and report the row of the deepest one. */
+    public void reveal(final int page, final RevealCallback callback) {
+        core.getRenderScheduler().submit(RenderScheduler.Priority.BACKGROUND, null, () -> {
+            ArrayList<Node> path = new ArrayList<>();
+            Node[] list = roots;
+            while (list.length > 0) {
+                Node found = null;
+                for (Node node : list) {
+                    resolve(node);
+                    if (found == null || node.page <= page)
+                        found = node;
+                    if (node.page > page)
+                        break;
+                }
+                path.add(found);
+                list = found.children;
+            }
+            handler.post(() -> {
+                for (int i = 0; i < path.size() - 1; i++)
+                    path.get(i).expanded = true;
+                rebuildRows();
+                notifyChanged();
+                callback.onRevealed(path.isEmpty() ? -1 : rows.indexOf(path.get(path.size() - 1)));
+            });
+        });
+    }
+}
@@ -1,7 +1,6 @@
 package com.artifex.mupdf.viewer;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.os.Handler;
@@ -11,20 +10,28 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
 
 public class PageAdapter extends BaseAdapter {
     private final Context mContext;
     private final MuPDFCore mCore;
     private final SparseArray<PointF> mPageSizes = new SparseArray<>();
-    private Bitmap mSharedHqBm;
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final PageTileCache mTileCache;
     private final Handler handler = new Handler(Looper.getMainLooper());
+    private final PagePrefetcher mPrefetcher;
+    private int mDisplayedPage = -1;
+    /* Bumped whenever page sizes are dropped; sizes found before are stale. */
+    private int mSizesGeneration;
+    private int mDirection = 1;
 
     public PageAdapter(Context c, MuPDFCore core) {
         mContext = c;
         mCore = core;
+        mPrefetcher = new PagePrefetcher(core,
+                c.getResources().getInteger(R.integer.prefetch_pages),
+                c.getResources().getInteger(R.integer.prefetch_cache_mb) * 1024L * 1024L);
+        mTileCache = new PageTileCache(core.getBitmapPool(),
+                c.getResources().getInteger(R.integer.tile_cache_mb) * 1024L * 1024L);
     }
 
     public int getCount() {
@@ -44,27 +51,31 @@ public class PageAdapter extends BaseAdapter {
     }
 
     public synchronized void releaseBitmaps() {
-        //  recycle and release the shared bitmap.
-        if (mSharedHqBm != null)
-            mSharedHqBm.recycle();
-        mSharedHqBm = null;
+        mPrefetcher.clear();
+        mTileCache.clear();
     }
 
     public void refresh() {
         mPageSizes.clear();
+        ++mSizesGeneration;
+        mPrefetcher.clear();
+        mTileCache.clear();
+    }
+
+    public void setDisplayedPage(int page) {
+        mCore.getRenderScheduler().setVisiblePage(page);
+        // read ahead in the direction of the last page change
+        if (mDisplayedPage >= 0 && page != mDisplayedPage)
+            mDirection = page > mDisplayedPage ? 1 : -1;
+        mDisplayedPage = page;
+        mPrefetcher.prefetch(page, mDirection);
     }
 
     public synchronized View getView(final int position, View convertView, ViewGroup parent) {
         final PageView pageView;
+        mPrefetcher.setParentSize(parent.getWidth(), parent.getHeight());
         if (convertView == null) {
-            if (mSharedHqBm == null || mSharedHqBm.getWidth() != parent.getWidth() || mSharedHqBm.getHeight() != parent.getHeight()) {
-                if (parent.getWidth() > 0 && parent.getHeight() > 0)
-                    mSharedHqBm = Bitmap.createBitmap(parent.getWidth(), parent.getHeight(), Bitmap.Config.ARGB_8888);
-                else
-                    mSharedHqBm = null;
-            }
-
-            pageView = new PageView(mContext, mCore, new Point(parent.getWidth(), parent.getHeight()), mSharedHqBm);
+            pageView = new PageView(mContext, mCore, new Point(parent.getWidth(), parent.getHeight()), mTileCache, mPrefetcher);
         } else {
             pageView = (PageView) convertView;
         }
@@ -78,27 +89,37 @@ public class PageAdapter extends BaseAdapter {
             // Page size as yet unknown. Blank it for now, and
             // start a background task to find the size
             pageView.blank(position);
+            requestPageSize(pageView, position);
+        }
+        return pageView;
+    }
 
-            // execute sizing task in the background
-            executorService.execute(() -> {
-                PointF result = null;
-                try {
-                    result = mCore.getPageSize(position); // Get the page size
-                } catch (RuntimeException e) {
-                    e.printStackTrace(); // Handle the exception as needed
+    private void requestPageSize(final PageView pageView, final int position) {
+        final int generation = mSizesGeneration;
+        // execute sizing task in the background
+        mCore.getRenderScheduler().submit(RenderScheduler.Priority.PAGE_SIZE, Arrays.asList(pageView, position), () -> {
+            PointF result = null;
+            try {
+                result = mCore.getPageSize(position); // Get the page size
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // Handle the exception as needed
+            }
+            // update UI on the main thread
+            PointF finalResult = result;
+            handler.post(() -> {
+                // Check that this view hasn't been reused for another page since we started
+                if (generation != mSizesGeneration) {
+                    // the page may have been renumbered meanwhile; ask again
+                    if (pageView.getPage() == position)
+                        requestPageSize(pageView, position);
+                    return;
+                }
+                // We now know the page size
+                mPageSizes.put(position, finalResult);
+                if (pageView.getPage() == position) {
+                    pageView.setPage(position, finalResult);
                 }
-                // update UI on the main thread
-                PointF finalResult = result;
-                handler.post(() -> {
-                    // We now know the page size
-                    mPageSizes.put(position, finalResult);
-                    // Check that this view hasn't been reused for another page since we started
-                    if (pageView.getPage() == position) {
-                        pageView.setPage(position, finalResult);
-                    }
-                });
             });
-        }
-        return pageView;
+        });
     }
 }
@@ -0,0 +1,133 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.DisplayList;
+import com.artifex.mupdf.fitz.Page;
+import com.artifex.mupdf.fitz.Rect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Bounded LRU of loaded pages and their display lists, keyed by chapter and
+ * page within the chapter, and tagged with the layout generation. Lookups
+ * may run concurrently under MuPDFCore's read lock; entries are only
+ * destroyed from put/setDisplayList/clear, which MuPDFCore calls with its
+ * write lock held. */
+class PageCache {
+    /* fitz does not report native sizes, so entries are costed by a rough
+     * estimate: a fixed overhead per page plus a per-area charge for the
+     * display list once it has been built. */
+    private static final long PAGE_OVERHEAD = 32 * 1024;
+    private static final long DISPLAY_LIST_OVERHEAD = 64 * 1024;
+    private static final float DISPLAY_LIST_BYTES_PER_POINT = 0.5f;
+
+    static class Entry {
+        final int generation;
+        final long id;
+        final Page page;
+        final Rect bounds;
+        final float width;
+        final float height;
+        DisplayList displayList;
+        long bytes;
+
+        Entry(int generation, long id, Page page) {
+            this.generation = generation;
+            this.id = id;
+            this.page = page;
+            bounds = page.getBounds();
+            width = bounds.x1 - bounds.x0;
+            height = bounds.y1 - bounds.y0;
+            bytes = PAGE_OVERHEAD;
+        }
+
+        /* An entry for a page of the given size that has not been loaded. */
+        Entry(int generation, long id, float width, float height) {
+            this.generation = generation;
+            this.id = id;
+            page = null;
+            bounds = null;
+            this.width = width;
+            this.height = height;
+            bytes = PAGE_OVERHEAD;
+        }
+
+        void destroy() {
+            if (displayList != null)
+                displayList.destroy();
+            displayList = null;
+            if (page != null)
+                page.destroy();
+        }
+    }
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private final int minEntries;
+    private long usedBytes;
+
+    PageCache(long maxBytes, int minEntries) {
+        this.maxBytes = maxBytes;
+        this.minEntries = minEntries;
+    }
+
+    /* Page numbers shift as chapters are counted; chapter and page do not. */
+    static long id(int chapter, int page) {
+        return ((long) chapter << 32) | (page & 0xffffffffL);
+    }
+
+    synchronized Entry get(int generation, long id) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.generation == generation ? entry : null;
+    }
+
+    synchronized void put(Entry entry) {
+        Entry old = entries.put(entry.id, entry);
+        if (old != null && old != entry) {
+            usedBytes -= old.bytes;
+            old.destroy();
+        }
+        usedBytes += entry.bytes;
+        trim(entry);
+    }
+
+    /* Record the display list built for an entry and charge its estimated size. */
+    synchronized void setDisplayList(Entry entry, DisplayList displayList) {
+        entry.displayList = displayList;
+        long bytes = PAGE_OVERHEAD + DISPLAY_LIST_OVERHEAD
+                + (long) (entry.width * entry.height * DISPLAY_LIST_BYTES_PER_POINT);
+        usedBytes += bytes - entry.bytes;
+        entry.bytes = bytes;
+        trim(entry);
+    }
+
+    /* Evict least recently used entries until under budget, always keeping
+     * the entry just touched and at least minEntries pages (the current
+     * page and its neighbours). */
+    private void trim(Entry keep) {
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && entries.size() > minEntries && it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e == keep)
+                continue;
+            it.remove();
+            usedBytes -= e.bytes;
+            e.destroy();
+        }
+    }
+
+    synchronized void clear() {
+        for (Entry e : entries.values())
+            e.destroy();
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,170 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.artifex.mupdf.fitz.Cookie;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/* Renders the pages ahead of the reading direction at minimum zoom so a page
+ * turn can swap in a finished bitmap. ReaderView already keeps the immediate
+ * neighbours as live PageViews, so the window starts two pages away. All
+ * methods are called on the UI thread. */
+public class PagePrefetcher {
+    private final MuPDFCore mCore;
+    private final int mPages;
+    private final long mMaxBytes;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Point mParentSize;
+
+    private static class Entry {
+        final Bitmap bm;
+        final Point size;
+
+        Entry(Bitmap bm, Point size) {
+            this.bm = bm;
+            this.size = size;
+        }
+    }
+
+    private static class Pending {
+        final RenderJob render;
+        final Bitmap bm;
+
+        Pending(RenderJob render, Bitmap bm) {
+            this.render = render;
+            this.bm = bm;
+        }
+
+        /* The render may still be writing to the bitmap; it goes back to
+         * the pool once it cannot. */
+        void cancel(BitmapPool pool) {
+            render.cancel();
+            render.releaseWhenDone(pool, bm);
+        }
+    }
+
+    private final LinkedHashMap<Integer, Entry> mReady = new LinkedHashMap<>(16, 0.75f, true);
+    private final SparseArray<Pending> mPending = new SparseArray<>();
+    private long mReadyBytes;
+
+    public PagePrefetcher(MuPDFCore core, int pages, long maxBytes) {
+        mCore = core;
+        mPages = pages;
+        mMaxBytes = maxBytes;
+    }
+
+    public void setParentSize(int width, int height) {
+        if (mParentSize == null || mParentSize.x != width || mParentSize.y != height) {
+            clear();
+            mParentSize = new Point(width, height);
+        }
+    }
+
+    /* Queue renders for the pages after current in the given direction and
+     * drop queued renders that have fallen out of the window. */
+    public void prefetch(int current, int direction) {
+        if (mPages <= 0 || mParentSize == null || mParentSize.x <= 0 || mParentSize.y <= 0)
+            return;
+        int first = current + 2 * direction;
+        int last = current + (mPages + 1) * direction;
+        int lo = Math.min(first, last);
+        int hi = Math.max(first, last);
+
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            int page = mPending.keyAt(i);
+            if (page < lo || page > hi) {
+                mPending.valueAt(i).cancel(mCore.getBitmapPool());
+                mPending.removeAt(i);
+            }
+        }
+
+        for (int page = first; page != last + direction; page += direction) {
+            if (page < 0 || page >= mCore.countPages())
+                break;
+            if (mReady.containsKey(page) || mPending.get(page) != null)
+                continue;
+            submit(page);
+        }
+    }
+
+    private void submit(final int page) {
+        final BitmapPool pool = mCore.getBitmapPool();
+        final Point parentSize = mParentSize;
+        final Bitmap bm = pool.acquire(parentSize.x, parentSize.y, Bitmap.Config.ARGB_8888);
+        final Point[] size = new Point[1];
+        final RenderJob render = new RenderJob(new MuPDFCancellableTaskDefinition<Void, Boolean>() {
+            @Override
+            public Boolean doInBackground(Cookie cookie, Void... params) {
+                PointF pageSize = mCore.getPageSize(page);
+                if (pageSize == null || pageSize.x <= 0 || pageSize.y <= 0)
+                    return Boolean.FALSE;
+                size[0] = PageView.minZoomSize(parentSize, pageSize);
+                mCore.drawPage(bm, page, size[0].x, size[0].y, 0, 0, size[0].x, size[0].y, cookie);
+                return Boolean.TRUE;
+            }
+        });
+        final Pending pending = new Pending(render, bm);
+        mPending.put(page, pending);
+        render.job = mCore.getRenderScheduler().submit(RenderScheduler.Priority.PREFETCH, null, () -> {
+            Boolean result = render.run();
+            mHandler.post(() -> {
+                // whoever cancelled the render took care of its bitmap
+                if (mPending.get(page) != pending || render.task.isCancelled())
+                    return;
+                mPending.remove(page);
+                if (result != null && result)
+                    put(page, new Entry(bm, size[0]));
+                else
+                    pool.release(bm);
+            });
+        });
+    }
+
+    private void put(int page, Entry entry) {
+        Entry old = mReady.put(page, entry);
+        if (old != null) {
+            mReadyBytes -= old.bm.getAllocationByteCount();
+            mCore.getBitmapPool().release(old.bm);
+        }
+        mReadyBytes += entry.bm.getAllocationByteCount();
+        Iterator<Entry> it = mReady.values().iterator();
+        while (mReadyBytes > mMaxBytes && it.hasNext()) {
+            Entry e = it.next();
+            if (e == entry)
+                continue;
+            it.remove();
+            mReadyBytes -= e.bm.getAllocationByteCount();
+            mCore.getBitmapPool().release(e.bm);
+        }
+    }
+
+    /* Hand over the finished render of a page at the given minimum zoom size,
+     * or null. The caller owns the returned bitmap. */
+    public Bitmap take(int page, Point size) {
+        Entry entry = mReady.get(page);
+        if (entry == null || !entry.size.equals(size))
+            return null;
+        mReady.remove(page);
+        mReadyBytes -= entry.bm.getAllocationByteCount();
+        return entry.bm;
+    }
+
+    public void clear() {
+        BitmapPool pool = mCore.getBitmapPool();
+        for (int i = 0; i < mPending.size(); i++)
+            mPending.valueAt(i).cancel(pool);
+        mPending.clear();
+        for (Entry e : mReady.values())
+            pool.release(e.bm);
+        mReady.clear();
+        mReadyBytes = 0;
+    }
+}
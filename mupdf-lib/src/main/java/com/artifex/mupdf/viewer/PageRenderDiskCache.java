@@ -0,0 +1,139 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/* Minimum zoom page renders kept on disk across sessions, one directory per
+ * document fingerprint. Files are written to a temporary name and renamed,
+ * so readers never see a partial image. */
+public class PageRenderDiskCache {
+    private static final String APP = "MuPDF";
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+
+    private final File dir;
+
+    public PageRenderDiskCache(File dir) {
+        this.dir = dir;
+    }
+
+    private File file(String fingerprint, String key) {
+        return new File(new File(dir, fingerprint), key + ".img");
+    }
+
+    /* Decode a cached render into the top left of the given bitmap. */
+    public boolean load(String fingerprint, String key, Bitmap into, BitmapPool pool) {
+        File f = file(fingerprint, key);
+        if (!f.isFile())
+            return false;
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getPath(), opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0
+                || opts.outWidth > into.getWidth() || opts.outHeight > into.getHeight())
+            return false;
+
+        // decode into a pooled bitmap of the exact size so the target keeps its own size
+        Bitmap tmp = pool.acquire(opts.outWidth, opts.outHeight, Bitmap.Config.ARGB_8888);
+        try {
+            opts.inJustDecodeBounds = false;
+            opts.inMutable = true;
+            opts.inBitmap = tmp;
+            Bitmap decoded = BitmapFactory.decodeFile(f.getPath(), opts);
+            if (decoded == null)
+                return false;
+            new Canvas(into).drawBitmap(decoded, 0, 0, null);
+            if (decoded != tmp)
+                decoded.recycle();
+            f.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.w(APP, "Unable to decode cached render " + f + ": " + e);
+            return false;
+        } finally {
+            pool.release(tmp);
+        }
+    }
+
+    /* A cached render as a bitmap of its own, or null. */
+    public Bitmap decode(String fingerprint, String key) {
+        File f = file(fingerprint, key);
+        return f.isFile() ? BitmapFactory.decodeFile(f.getPath()) : null;
+    }
+
+    /* Copy the top left width x height of a render and write it out as a
+     * background job. */
+    public void storeAsync(final String fingerprint, final String key, Bitmap bm, int width, int height,
+                           RenderScheduler scheduler, final BitmapPool pool) {
+        if (file(fingerprint, key).isFile())
+            return;
+        final Bitmap copy = pool.acquire(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(copy).drawBitmap(bm, 0, 0, null);
+        scheduler.submit(RenderScheduler.Priority.BACKGROUND, null, () -> {
+            try {
+                store(fingerprint, key, copy);
+            } finally {
+                pool.release(copy);
+            }
+        });
+    }
+
+    private void store(String fingerprint, String key, Bitmap bm) {
+        File f = file(fingerprint, key);
+        File parent = f.getParentFile();
+        if (parent == null || (!parent.isDirectory() && !parent.mkdirs()))
+            return;
+        File tmp = new File(parent, key + ".tmp" + Thread.currentThread().getId());
+        Bitmap.CompressFormat format = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.PNG;
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            if (!bm.compress(format, 100, out))
+                throw new IOException("compress failed");
+        } catch (IOException e) {
+            Log.w(APP, "Unable to cache render " + f + ": " + e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(f))
+            tmp.delete();
+        trim();
+    }
+
+    /* Drop least recently used renders, across all documents, beyond the budget. */
+    private synchronized void trim() {
+        File[] docs = dir.listFiles();
+        if (docs == null)
+            return;
+        ArrayList<File> files = new ArrayList<>();
+        long total = 0;
+        for (File doc : docs) {
+            File[] list = doc.listFiles();
+            if (list == null)
+                continue;
+            for (File f : list) {
+                files.add(f);
+                total += f.length();
+            }
+        }
+        if (total <= MAX_BYTES)
+            return;
+        File[] sorted = files.toArray(new File[0]);
+        Arrays.sort(sorted, Comparator.comparingLong(File::lastModified));
+        for (File f : sorted) {
+            if (total <= MAX_BYTES)
+                break;
+            total -= f.length();
+            f.delete();
+        }
+    }
+}
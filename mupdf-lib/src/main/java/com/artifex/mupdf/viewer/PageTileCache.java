@@ -0,0 +1,79 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/* Session-wide LRU of rendered HQ tiles, shared by all page views so tiles
+ * survive views being recycled. Tiles are fixed size pooled bitmaps keyed by
+ * page, zoom level and tile position. All methods are called on the UI thread. */
+public class PageTileCache {
+    public static final int TILE_SIZE = 256;
+
+    private final BitmapPool pool;
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Bitmap> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    public PageTileCache(BitmapPool pool, long maxBytes) {
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+    }
+
+    public static long key(int page, int level, int tx, int ty) {
+        return ((long) page << 32) | ((long) level << 24) | ((long) ty << 12) | tx;
+    }
+
+    private static int pageOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public BitmapPool getPool() {
+        return pool;
+    }
+
+    public Bitmap get(long key) {
+        return tiles.get(key);
+    }
+
+    public void put(long key, Bitmap bm) {
+        Bitmap old = tiles.put(key, bm);
+        if (old != null) {
+            bytes -= old.getAllocationByteCount();
+            pool.release(old);
+        }
+        bytes += bm.getAllocationByteCount();
+        Iterator<Map.Entry<Long, Bitmap>> it = tiles.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<Long, Bitmap> e = it.next();
+            if (e.getValue() == bm)
+                continue;
+            it.remove();
+            bytes -= e.getValue().getAllocationByteCount();
+            pool.release(e.getValue());
+        }
+    }
+
+    /* Drop the tiles of a page that has changed, except those about to be replaced. */
+    public void removePage(int page, Set<Long> keep) {
+        Iterator<Map.Entry<Long, Bitmap>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Bitmap> e = it.next();
+            if (pageOf(e.getKey()) == page && !keep.contains(e.getKey())) {
+                it.remove();
+                bytes -= e.getValue().getAllocationByteCount();
+                pool.release(e.getValue());
+            }
+        }
+    }
+
+    public void clear() {
+        for (Bitmap bm : tiles.values())
+            pool.release(bm);
+        tiles.clear();
+        bytes = 0;
+    }
+}
@@ -6,6 +6,8 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
@@ -31,8 +33,7 @@ import com.artifex.mupdf.fitz.Cookie;
 import com.artifex.mupdf.fitz.Link;
 import com.artifex.mupdf.fitz.Quad;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 // Make our ImageViews opaque to optimize redraw
 class OpaqueImageView extends AppCompatImageView {
@@ -55,6 +56,16 @@ public class PageView extends ViewGroup {
     private static final int LINK_COLOR_DARK = 0x26FFFFFF;
     private static final int BACKGROUND_COLOR = 0xFFFFFFFF;
     private static final int PROGRESS_DIALOG_DELAY = 200;
+    /* A page not in the render cache is first shown from a render at this
+     * fraction of its width and height, a quarter of the pixels. */
+    private static final int PREVIEW_DIVISOR = 2;
+    /* Inverts luminance and keeps hue: each channel c becomes c + 1 - 2Y. */
+    private static final ColorFilter INVERT_FILTER = new ColorMatrixColorFilter(new float[]{
+            1 - 2 * 0.299f, -2 * 0.587f, -2 * 0.114f, 0, 255,
+            -2 * 0.299f, 1 - 2 * 0.587f, -2 * 0.114f, 0, 255,
+            -2 * 0.299f, -2 * 0.587f, 1 - 2 * 0.114f, 0, 255,
+            0, 0, 0, 1, 0,
+    });
 
     protected final Context mContext;
 
@@ -65,13 +76,12 @@ public class PageView extends ViewGroup {
 
     private ImageView imageAtMinZoom; // Image rendered at minimum zoom
     private Bitmap mEntireBm;
+    private Bitmap mPreviewBm;
+    private int mEntireSerial;
     private final Matrix mEntireMat;
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
     private final Handler handler = new Handler(Looper.getMainLooper());
-    private Point mPatchViewSize; // View size on the basis of which the patch was created
-    private Rect mPatchArea;
-    private ImageView mPatch;
-    private Bitmap mPatchBm;
+    private HqTileView mTiles;
+    private final PageTileCache mTileCache;
     private Quad[][] mSearchBoxes;
     protected Link[] mLinks;
     private View mSearchView;
@@ -82,23 +92,119 @@ public class PageView extends ViewGroup {
     private ProgressBar mBusyIndicator;
     private final Handler mHandler = new Handler();
 
-    public PageView(Context c, MuPDFCore core, Point parentSize, Bitmap sharedHqBm) {
+    // In-flight renders; aborted when superseded or when the view is recycled
+    private RenderJob mEntireRender;
+    // Last render that drew into mEntireBm; it may still be running after a cancel
+    private RenderJob mEntireWriter;
+    private final PagePrefetcher mPrefetcher;
+
+    public PageView(Context c, MuPDFCore core, Point parentSize, PageTileCache tileCache, PagePrefetcher prefetcher) {
         super(c);
         mContext = c;
         mCore = core;
         mParentSize = parentSize;
+        mPrefetcher = prefetcher;
         setBackgroundColor(BACKGROUND_COLOR);
-        mEntireBm = Bitmap.createBitmap(parentSize.x, parentSize.y, Config.ARGB_8888);
-        mPatchBm = sharedHqBm;
+        mEntireBm = core.getBitmapPool().acquire(parentSize.x, parentSize.y, Config.ARGB_8888);
+        mTileCache = tileCache;
         mEntireMat = new Matrix();
     }
 
+    /* Filter that draws a light render in the theme, or null for as is. */
+    static ColorFilter themeFilter(boolean invert) {
+        return invert ? INVERT_FILTER : null;
+    }
+
+    /* Show the page in the current theme; nothing is rendered again. */
+    public void applyTheme() {
+        if (imageAtMinZoom != null)
+            imageAtMinZoom.setColorFilter(themeFilter(MuPDFCore.getInvert()));
+        if (mEntireRender != null)
+            setBackgroundColor(MuPDFCore.getInvert() ? Color.BLACK : Color.WHITE);
+        if (mTiles != null)
+            mTiles.invalidate();
+        if (mSearchView != null)
+            mSearchView.invalidate();
+    }
+
+    // Size of a page at minimum zoom, fitted within the parent
+    static Point minZoomSize(Point parentSize, PointF size) {
+        float scale = Math.min(parentSize.x / size.x, parentSize.y / size.y);
+        return new Point((int) (size.x * scale), (int) (size.y * scale));
+    }
+
+    private void releaseEntireBitmap() {
+        if (mEntireBm != null) {
+            if (mEntireWriter != null)
+                mEntireWriter.releaseWhenDone(mCore.getBitmapPool(), mEntireBm);
+            else
+                mCore.getBitmapPool().release(mEntireBm);
+        }
+        mEntireBm = null;
+        mEntireWriter = null;
+    }
+
+    private void releasePreview() {
+        if (mPreviewBm != null)
+            mCore.getBitmapPool().release(mPreviewBm);
+        mPreviewBm = null;
+    }
+
+    /* The image holds the render of the page at minimum zoom, or a preview
+     * at a fraction of that size; either is scaled to fill the view. */
+    private void updateImageMatrix() {
+        float s = mPreviewBm != null ? PREVIEW_DIVISOR : 1;
+        mEntireMat.setScale(getWidth() * s / pageSizeAtMinZoom.x, getHeight() * s / pageSizeAtMinZoom.y);
+        imageAtMinZoom.setImageMatrix(mEntireMat);
+        imageAtMinZoom.invalidate();
+    }
+
+    /* Runs on the main thread; the preview is dropped if its render has been
+     * superseded or has finished. */
+    private void showPreview(int serial, Bitmap preview) {
+        if (serial != mEntireSerial || mEntireRender == null || imageAtMinZoom == null) {
+            mCore.getBitmapPool().release(preview);
+            return;
+        }
+        imageAtMinZoom.setImageBitmap(preview);
+        releasePreview();
+        mPreviewBm = preview;
+        updateImageMatrix();
+        if (mBusyIndicator != null) {
+            removeView(mBusyIndicator);
+            mBusyIndicator = null;
+        }
+        setBackgroundColor(Color.TRANSPARENT);
+    }
+
     private void renderPageInBackgroundEntire() {
+        if (mEntireRender != null)
+            mEntireRender.cancel();
+        mEntireRender = null;
+
+        // A page prefetched ahead of the reading direction is swapped in as is
+        Bitmap prefetched = mPrefetcher != null ? mPrefetcher.take(mPageNumber, pageSizeAtMinZoom) : null;
+        if (prefetched != null) {
+            releaseEntireBitmap();
+            mEntireBm = prefetched;
+            if (mBusyIndicator != null) {
+                removeView(mBusyIndicator);
+                mBusyIndicator = null;
+            }
+            clearRenderError();
+            imageAtMinZoom.setImageBitmap(mEntireBm);
+            releasePreview();
+            updateImageMatrix();
+            setBackgroundColor(Color.TRANSPARENT);
+            return;
+        }
+
         setBackgroundColor(MuPDFCore.getInvert() ? Color.BLACK : Color.WHITE);
         if (imageAtMinZoom != null) {
             imageAtMinZoom.setImageBitmap(null);
             imageAtMinZoom.invalidate();
         }
+        releasePreview();
 
         if (mBusyIndicator == null) {
             mBusyIndicator = new ProgressBar(mContext);
@@ -112,25 +218,34 @@ public class PageView extends ViewGroup {
             }, PROGRESS_DIALOG_DELAY);
         }
 
-        CancellableTaskDefinition<Void, Boolean> task = getDrawPageTask(mEntireBm, pageSizeAtMinZoom.x, pageSizeAtMinZoom.y, 0, 0, pageSizeAtMinZoom.x, pageSizeAtMinZoom.y);
+        RenderScheduler scheduler = mCore.getRenderScheduler();
+        RenderScheduler.Priority priority = scheduler.isVisiblePage(mPageNumber)
+                ? RenderScheduler.Priority.VISIBLE : RenderScheduler.Priority.PREFETCH;
+        // only the page on screen is worth a preview
+        final int serial = ++mEntireSerial;
+        Consumer<Bitmap> preview = priority == RenderScheduler.Priority.VISIBLE
+                ? bm -> handler.post(() -> showPreview(serial, bm)) : null;
+        final RenderJob render = new RenderJob(getDrawEntireTask(mEntireBm, pageSizeAtMinZoom.x, pageSizeAtMinZoom.y, preview));
+        mEntireRender = render;
+        mEntireWriter = render;
         // execute rendering task in the background
-        executorService.execute(() -> {
-            Boolean result;
-            try {
-                result = task.doInBackground();
-            } catch (Exception e) {
-                e.printStackTrace();
-                result = false;
-            }
+        render.job = scheduler.submit(priority, null, () -> {
+            Boolean result = render.run();
             // update UI on the main thread
-            Boolean finalResult = result;
             handler.post(() -> {
+                // Superseded or recycled while rendering
+                if (mEntireRender != render || render.task.isCancelled())
+                    return;
+                mEntireRender = null;
                 removeView(mBusyIndicator);
                 mBusyIndicator = null;
-                if (finalResult != null && finalResult) {
+                if (result != null && result) {
                     clearRenderError();
                     imageAtMinZoom.setImageBitmap(mEntireBm);
-                    imageAtMinZoom.invalidate();
+                    releasePreview();
+                    updateImageMatrix();
+                    if (scheduler.isVisiblePage(mPageNumber))
+                        StartupTrace.end("first page drawn");
                 } else {
                     setRenderError();
                 }
@@ -139,35 +254,16 @@ public class PageView extends ViewGroup {
         });
     }
 
-    private void backgroundRenderPatch(CancellableTaskDefinition<Void, Boolean> task, Point patchViewSize, Rect patchArea) {
-        // execute rendering task in the background
-        executorService.execute(() -> {
-            Boolean result;
-            try {
-                result = task.doInBackground();
-            } catch (Exception e) {
-                e.printStackTrace();
-                result = false;
-            }
-            // update UI on the main thread
-            Boolean finalResult = result;
-            handler.post(() -> {
-                if (finalResult != null && finalResult) {
-                    mPatchViewSize = patchViewSize;
-                    mPatchArea = patchArea;
-                    clearRenderError();
-                    mPatch.setImageBitmap(mPatchBm);
-                    mPatch.invalidate();
-                    mPatch.layout(mPatchArea.left, mPatchArea.top, mPatchArea.right, mPatchArea.bottom);
-                } else {
-                    setRenderError();
-                }
-            });
-        });
+    private void cancelRenders() {
+        if (mEntireRender != null)
+            mEntireRender.cancel();
+        mEntireRender = null;
+        if (mTiles != null)
+            mTiles.cancel();
     }
 
-
     private void reinit() {
+        cancelRenders();
         mIsBlank = true;
         mPageNumber = 0;
 
@@ -178,14 +274,10 @@ public class PageView extends ViewGroup {
             imageAtMinZoom.setImageBitmap(null);
             imageAtMinZoom.invalidate();
         }
+        releasePreview();
 
-        if (mPatch != null) {
-            mPatch.setImageBitmap(null);
-            mPatch.invalidate();
-        }
-
-        mPatchViewSize = null;
-        mPatchArea = null;
+        if (mTiles != null)
+            mTiles.reset();
 
         mSearchBoxes = null;
         mLinks = null;
@@ -205,13 +297,8 @@ public class PageView extends ViewGroup {
 
     public void releaseBitmaps() {
         reinit();
-        // recycle bitmaps before releasing them.
-        if (mEntireBm != null)
-            mEntireBm.recycle();
-        mEntireBm = null;
-        if (mPatchBm != null)
-            mPatchBm.recycle();
-        mPatchBm = null;
+        // return our bitmap to the pool; tiles belong to the adapter's cache
+        releaseEntireBitmap();
     }
 
     public void blank(int page) {
@@ -253,6 +340,7 @@ public class PageView extends ViewGroup {
     }
 
     public void setPage(int page, PointF size) {
+        cancelRenders();
         mIsBlank = false;
         // Highlights may be missing because mIsBlank was true on last draw
         if (mSearchView != null)
@@ -268,7 +356,7 @@ public class PageView extends ViewGroup {
         // Calculate scaled size that fits within the screen limits
         // This is the size at minimum zoom
         mSourceScale = Math.min(mParentSize.x / size.x, mParentSize.y / size.y);
-        pageSizeAtMinZoom = new Point((int) (size.x * mSourceScale), (int) (size.y * mSourceScale));
+        pageSizeAtMinZoom = minZoomSize(mParentSize, size);
 
         if (mErrorIndicator != null)
             return;
@@ -281,11 +369,12 @@ public class PageView extends ViewGroup {
 
         if (imageAtMinZoom != null) {
             imageAtMinZoom.setImageBitmap(null);
+            imageAtMinZoom.setColorFilter(themeFilter(MuPDFCore.getInvert()));
             imageAtMinZoom.invalidate();
         }
 
         Handler handler = new Handler(Looper.getMainLooper());
-        executorService.execute(() -> {
+        mCore.getRenderScheduler().submit(RenderScheduler.Priority.PAGE_SIZE, null, () -> {
             Link[] links = getLinkInfo();
             handler.post(() -> {
                 mLinks = links;
@@ -378,11 +467,8 @@ public class PageView extends ViewGroup {
         int h = bottom - top;
 
         if (imageAtMinZoom != null) {
-            if (imageAtMinZoom.getWidth() != w || imageAtMinZoom.getHeight() != h) {
-                mEntireMat.setScale(w / (float) pageSizeAtMinZoom.x, h / (float) pageSizeAtMinZoom.y);
-                imageAtMinZoom.setImageMatrix(mEntireMat);
-                imageAtMinZoom.invalidate();
-            }
+            if (imageAtMinZoom.getWidth() != w || imageAtMinZoom.getHeight() != h)
+                updateImageMatrix();
             imageAtMinZoom.layout(0, 0, w, h);
         }
 
@@ -390,18 +476,9 @@ public class PageView extends ViewGroup {
             mSearchView.layout(0, 0, w, h);
         }
 
-        if (mPatchViewSize != null) {
-            if (mPatchViewSize.x != w || mPatchViewSize.y != h) {
-                // Zoomed since patch was created
-                mPatchViewSize = null;
-                mPatchArea = null;
-                if (mPatch != null) {
-                    mPatch.setImageBitmap(null);
-                    mPatch.invalidate();
-                }
-            } else {
-                mPatch.layout(mPatchArea.left, mPatchArea.top, mPatchArea.right, mPatchArea.bottom);
-            }
+        if (mTiles != null) {
+            // tiles are drawn scaled while zooming until updateHq asks for the new level
+            mTiles.layout(0, 0, w, h);
         }
 
         if (mBusyIndicator != null) {
@@ -420,76 +497,57 @@ public class PageView extends ViewGroup {
 
     public void updateHq(boolean update) {
         if (mErrorIndicator != null) {
-            if (mPatch != null) {
-                mPatch.setImageBitmap(null);
-                mPatch.invalidate();
-            }
+            if (mTiles != null)
+                mTiles.reset();
             return;
         }
 
         Rect viewArea = new Rect(getLeft(), getTop(), getRight(), getBottom());
         if (viewArea.width() == pageSizeAtMinZoom.x || viewArea.height() == pageSizeAtMinZoom.y) {
-            // If the viewArea's size matches the unzoomed size, there is no need for an hq patch
-            if (mPatch != null) {
-                mPatch.setImageBitmap(null);
-                mPatch.invalidate();
-            }
+            // If the viewArea's size matches the unzoomed size, there is no need for hq tiles
+            if (mTiles != null)
+                mTiles.reset();
         } else {
-            final Point patchViewSize = new Point(viewArea.width(), viewArea.height());
-            final Rect patchArea = new Rect(0, 0, mParentSize.x, mParentSize.y);
+            final Point viewSize = new Point(viewArea.width(), viewArea.height());
+            final Rect visible = new Rect(0, 0, mParentSize.x, mParentSize.y);
 
             // Intersect and test that there is an intersection
-            if (!patchArea.intersect(viewArea))
-                return;
-
-            // Offset patch area to be relative to the view top left
-            patchArea.offset(-viewArea.left, -viewArea.top);
-
-            boolean area_unchanged = patchArea.equals(mPatchArea) && patchViewSize.equals(mPatchViewSize);
-
-            // If being asked for the same area as last time and not because of an update then nothing to do
-            if (area_unchanged && !update)
+            if (!visible.intersect(viewArea))
                 return;
 
-            boolean completeRedraw = !(area_unchanged && update);
+            // Offset visible area to be relative to the view top left
+            visible.offset(-viewArea.left, -viewArea.top);
 
-            // Create and add the image view if not already done
-            if (mPatch == null) {
-                mPatch = new OpaqueImageView(mContext);
-                mPatch.setScaleType(ImageView.ScaleType.MATRIX);
-                addView(mPatch);
+            // Create and add the tile layer if not already done
+            if (mTiles == null) {
+                mTiles = new HqTileView(mContext, this, mCore, mTileCache, mParentSize);
+                addView(mTiles);
+                mTiles.layout(0, 0, viewSize.x, viewSize.y);
                 if (mSearchView != null)
                     mSearchView.bringToFront();
             }
 
-            CancellableTaskDefinition<Void, Boolean> task;
-
-            if (completeRedraw)
-                task = getDrawPageTask(mPatchBm, patchViewSize.x, patchViewSize.y,
-                        patchArea.left, patchArea.top,
-                        patchArea.width(), patchArea.height());
-            else
-                task = getUpdatePageTask(mPatchBm, patchViewSize.x, patchViewSize.y,
-                        patchArea.left, patchArea.top,
-                        patchArea.width(), patchArea.height());
-
-            backgroundRenderPatch(task, patchViewSize, patchArea);
+            mTiles.update(mPageNumber, pageSizeAtMinZoom, viewSize, visible, update);
         }
     }
 
     public void removeHq() {
-        mPatchViewSize = null;
-        mPatchArea = null;
-        if (mPatch != null) {
-            mPatch.setImageBitmap(null);
-            mPatch.invalidate();
-        }
+        // Cached tiles stay for when the page is zoomed again
+        if (mTiles != null)
+            mTiles.cancel();
     }
 
     public int getPage() {
         return mPageNumber;
     }
 
+    /* Key of this page's minimum zoom render in the disk cache, or null. */
+    public String getRenderCacheKey() {
+        if (pageSizeAtMinZoom == null || mCore.getRenderCache() == null)
+            return null;
+        return mCore.getRenderCacheKey(mPageNumber, pageSizeAtMinZoom.x, pageSizeAtMinZoom.y);
+    }
+
     @Override
     public boolean isOpaque() {
         return true;
@@ -532,13 +590,14 @@ public class PageView extends ViewGroup {
 
     protected CancellableTaskDefinition<Void, Boolean> getDrawPageTask(final Bitmap bm, final int sizeX, final int sizeY,
                                                                        final int patchX, final int patchY, final int patchWidth, final int patchHeight) {
+        final int page = mPageNumber;
         return new MuPDFCancellableTaskDefinition<>() {
             @Override
             public Boolean doInBackground(Cookie cookie, Void... params) {
                 if (bm == null)
                     return Boolean.FALSE;
                 try {
-                    mCore.drawPage(bm, mPageNumber, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, cookie);
+                    mCore.drawPage(bm, page, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, cookie);
                     return Boolean.TRUE;
                 } catch (RuntimeException e) {
                     return Boolean.FALSE;
@@ -548,15 +607,66 @@ public class PageView extends ViewGroup {
 
     }
 
+    /* Full page render at minimum zoom, served from the on-disk cache when a
+     * previous session rendered the same page at the same size and layout.
+     * Otherwise, if a preview consumer is given, a quick render at a fraction
+     * of the size is handed to it first; it then owns that bitmap. */
+    protected CancellableTaskDefinition<Void, Boolean> getDrawEntireTask(final Bitmap bm, final int sizeX, final int sizeY,
+                                                                         final Consumer<Bitmap> preview) {
+        final int page = mPageNumber;
+        final PageRenderDiskCache cache = mCore.getRenderCache();
+        final String fingerprint = mCore.getFingerprint();
+        return new MuPDFCancellableTaskDefinition<>() {
+            @Override
+            public Boolean doInBackground(Cookie cookie, Void... params) {
+                if (bm == null)
+                    return Boolean.FALSE;
+                String key = cache != null ? mCore.getRenderCacheKey(page, sizeX, sizeY) : null;
+                if (key != null && cache.load(fingerprint, key, bm, mCore.getBitmapPool()))
+                    return Boolean.TRUE;
+                if (preview != null)
+                    drawPreview(cookie);
+                try {
+                    mCore.drawPage(bm, page, sizeX, sizeY, 0, 0, sizeX, sizeY, cookie);
+                } catch (RuntimeException e) {
+                    return Boolean.FALSE;
+                }
+                // drawing counted the page's chapter if it was not yet
+                if (key == null && cache != null)
+                    key = mCore.getRenderCacheKey(page, sizeX, sizeY);
+                if (key != null && !isCancelled())
+                    cache.storeAsync(fingerprint, key, bm, sizeX, sizeY, mCore.getRenderScheduler(), mCore.getBitmapPool());
+                return Boolean.TRUE;
+            }
+
+            private void drawPreview(Cookie cookie) {
+                int w = Math.max(1, sizeX / PREVIEW_DIVISOR);
+                int h = Math.max(1, sizeY / PREVIEW_DIVISOR);
+                Bitmap small = mCore.getBitmapPool().acquire(w, h, Config.ARGB_8888);
+                try {
+                    mCore.drawPage(small, page, w, h, 0, 0, w, h, cookie);
+                } catch (RuntimeException e) {
+                    mCore.getBitmapPool().release(small);
+                    small = null;
+                }
+                if (small != null && !isCancelled())
+                    preview.accept(small);
+                else if (small != null)
+                    mCore.getBitmapPool().release(small);
+            }
+        };
+    }
+
     protected CancellableTaskDefinition<Void, Boolean> getUpdatePageTask(final Bitmap bm, final int sizeX, final int sizeY,
                                                                          final int patchX, final int patchY, final int patchWidth, final int patchHeight) {
+        final int page = mPageNumber;
         return new MuPDFCancellableTaskDefinition<>() {
             @Override
             public Boolean doInBackground(Cookie cookie, Void... params) {
                 if (bm == null)
                     return Boolean.FALSE;
                 try {
-                    mCore.updatePage(bm, mPageNumber, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, cookie);
+                    mCore.updatePage(bm, page, sizeX, sizeY, patchX, patchY, patchWidth, patchHeight, cookie);
                     return Boolean.TRUE;
                 } catch (RuntimeException e) {
                     return Boolean.FALSE;
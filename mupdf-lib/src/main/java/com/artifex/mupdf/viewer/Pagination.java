@@ -0,0 +1,164 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Location;
+
+import java.util.Arrays;
+
+/* Page numbering of a document laid out chapter by chapter. Chapters that
+ * have not been counted yet are numbered with an estimated number of pages,
+ * so the pages being read can be shown, and the slider sized, before the
+ * whole book has been laid out.
+ *
+ * The numbering of the chapters before the anchor (the chapter being read
+ * when the layout started) stays on its estimates until every chapter has
+ * been counted, so the pages on screen keep their numbers while the count
+ * runs; finish() then renumbers them all at once.
+ *
+ * Changed by MuPDFCore with its write lock held and read under its read lock. */
+public class Pagination {
+    private final int[] counts;  // pages in each chapter, -1 while not counted
+    private final int[] sizes;   // pages each chapter is numbered with
+    private final int[] offsets; // number of the first page of each chapter, and the total
+    private final int anchor;
+    private int counted;
+
+    /* Estimates of chapters that may still be counted must be at least 1. */
+    Pagination(int[] estimates, int anchor) {
+        int n = estimates.length;
+        counts = new int[n];
+        Arrays.fill(counts, -1);
+        sizes = estimates.clone();
+        offsets = new int[n + 1];
+        this.anchor = anchor;
+        renumber(0);
+    }
+
+    private Pagination(Pagination p) {
+        counts = p.counts.clone();
+        sizes = p.sizes.clone();
+        offsets = p.offsets.clone();
+        anchor = p.anchor;
+        counted = p.counted;
+    }
+
+    /* Numbering for chapters whose page counts are all known. */
+    static Pagination of(int[] counts) {
+        Pagination p = new Pagination(counts, 0);
+        for (int i = 0; i < counts.length; i++)
+            p.setCount(i, counts[i]);
+        return p;
+    }
+
+    private void renumber(int from) {
+        for (int i = from; i < sizes.length; i++)
+            offsets[i + 1] = offsets[i] + sizes[i];
+    }
+
+    public int countChapters() {
+        return counts.length;
+    }
+
+    public int countPages() {
+        return offsets[sizes.length];
+    }
+
+    public int getAnchor() {
+        return anchor;
+    }
+
+    public boolean isCounted(int chapter) {
+        return counts[chapter] >= 0;
+    }
+
+    public boolean isComplete() {
+        return counted == counts.length;
+    }
+
+    /* Every chapter counted and numbered by its count. */
+    public boolean isFinal() {
+        return isComplete() && anchor == 0;
+    }
+
+    /* Page count of a chapter, or -1 if not counted yet. */
+    public int getCount(int chapter) {
+        return counts[chapter];
+    }
+
+    /* Page counts of all chapters, -1 for those not counted yet. */
+    public int[] getCounts() {
+        return counts.clone();
+    }
+
+    void setCount(int chapter, int count) {
+        if (counts[chapter] < 0)
+            ++counted;
+        counts[chapter] = count;
+        if (chapter >= anchor && sizes[chapter] != count) {
+            sizes[chapter] = count;
+            renumber(chapter);
+        }
+    }
+
+    /* A snapshot that later counts do not change. */
+    Pagination copy() {
+        return new Pagination(this);
+    }
+
+    /* Pages of a chapter that have a page number of their own. */
+    private int numbered(int chapter) {
+        return counts[chapter] >= 0 ? Math.min(sizes[chapter], counts[chapter]) : sizes[chapter];
+    }
+
+    /* The first page number that stands for another page, or no page, in
+     * the other numbering; -1 if the two number every page alike. */
+    public int firstDifference(Pagination other) {
+        if (other.sizes.length != sizes.length)
+            return 0;
+        for (int c = 0; c < sizes.length; c++) {
+            if (sizes[c] != other.sizes[c] || numbered(c) != other.numbered(c))
+                return offsets[c] + Math.min(numbered(c), other.numbered(c));
+        }
+        return -1;
+    }
+
+    /* The numbering once every chapter has been counted. */
+    Pagination finish() {
+        return of(counts);
+    }
+
+    public int toPageNumber(int chapter, int page) {
+        if (chapter < 0)
+            return 0;
+        if (chapter >= sizes.length)
+            return countPages() - 1;
+        return offsets[chapter] + Math.max(0, Math.min(page, sizes[chapter] - 1));
+    }
+
+    public int toPageNumber(Location loc) {
+        return toPageNumber(loc.chapter, loc.page);
+    }
+
+    /* Chapter and page for a page number. Within a chapter numbered on an
+     * estimate, pages past its real end land on its last page, and the pages
+     * of one found to be empty on the next page there is. */
+    public Location toLocation(int pageNumber) {
+        int chapter = Arrays.binarySearch(offsets, 0, sizes.length, Math.max(0, Math.min(pageNumber, countPages() - 1)));
+        if (chapter < 0)
+            chapter = -chapter - 2;
+        // empty chapters share their offset with the next one
+        while (chapter + 1 < sizes.length && offsets[chapter + 1] == offsets[chapter])
+            ++chapter;
+        if (counts[chapter] == 0) {
+            for (int c = chapter + 1; c < counts.length; c++)
+                if (counts[c] != 0)
+                    return new Location(c, 0);
+            for (int c = chapter - 1; c >= 0; c--)
+                if (counts[c] != 0)
+                    return new Location(c, counts[c] > 0 ? counts[c] - 1 : sizes[c] - 1);
+        }
+        int page = pageNumber - offsets[chapter];
+        if (counts[chapter] >= 0)
+            page = Math.min(page, counts[chapter] - 1);
+        return new Location(chapter, Math.max(0, page));
+    }
+}
@@ -0,0 +1,69 @@
+package com.artifex.mupdf.viewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Outcome of counting the pages of a reflowable document for a layout: the
+ * page count of each chapter and the page of each outline entry. Kept in
+ * memory for the session and in the document store across sessions, so
+ * going back to a layout used before does not count every chapter again. */
+public class PaginationCache {
+    private static final int MAX_ENTRIES = 16;
+
+    public static final class Entry {
+        final int[] counts;
+        final int[] outlinePages; // null until the outline has been resolved
+
+        Entry(int[] counts, int[] outlinePages) {
+            this.counts = counts;
+            this.outlinePages = outlinePages;
+        }
+    }
+
+    private final DocumentStore store;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public PaginationCache(DocumentStore store) {
+        this.store = store;
+    }
+
+    public Entry get(String fingerprint, String layoutKey) {
+        String key = fingerprint + "/" + layoutKey;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null)
+                return entry;
+        }
+        Entry entry = store.getPagination(fingerprint, layoutKey);
+        if (entry != null) {
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /* Record the page counts of a layout, dropping any outline pages resolved
+     * for an earlier count; the store writes them out in the background. */
+    public void putCounts(String fingerprint, String layoutKey, int[] counts) {
+        put(fingerprint, layoutKey, new Entry(counts.clone(), null));
+    }
+
+    public void putOutlinePages(String fingerprint, String layoutKey, int[] pages) {
+        Entry entry = get(fingerprint, layoutKey);
+        if (entry != null)
+            put(fingerprint, layoutKey, new Entry(entry.counts, pages.clone()));
+    }
+
+    private void put(String fingerprint, String layoutKey, Entry entry) {
+        synchronized (entries) {
+            entries.put(fingerprint + "/" + layoutKey, entry);
+        }
+        store.putPagination(fingerprint, layoutKey, entry);
+    }
+}
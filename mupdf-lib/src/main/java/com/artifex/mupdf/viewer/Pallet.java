@@ -18,19 +18,25 @@ public class Pallet {
     }
 
     public static int sendBundle(Bundle bundle) {
+        return send(bundle);
+    }
+
+    public static Bundle receiveBundle(int number) {
+        return (Bundle) receive(number);
+    }
+
+    /* Hand over an object that cannot go in a bundle, within the process. */
+    public static int send(Object object) {
         Pallet instance = getInstance();
         int i = instance.sequenceNumber++;
         if (instance.sequenceNumber < 0)
             instance.sequenceNumber = 0;
-        instance.pallet.put(i, bundle);
+        instance.pallet.put(i, object);
         return i;
     }
 
-    public static Bundle receiveBundle(int number) {
-        Bundle bundle = (Bundle) getInstance().pallet.get(number);
-        if (bundle != null)
-            getInstance().pallet.remove(number);
-        return bundle;
+    public static Object receive(int number) {
+        return getInstance().pallet.remove(number);
     }
 
     public static boolean hasBundle(int number) {
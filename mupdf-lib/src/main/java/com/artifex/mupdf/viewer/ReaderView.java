@@ -340,8 +340,11 @@ public class ReaderView
             View v = mChildViews.valueAt(i);
             onNotInUse(v);
             removeViewInLayout(v);
+            ((PageView) v).releaseBitmaps();
         }
         mChildViews.clear();
+        for (View v : mViewCache)
+            ((PageView) v).releaseBitmaps();
         mViewCache.clear();
 
         requestLayout();
@@ -754,6 +757,8 @@ public class ReaderView
         if (mAdapter != null && mAdapter != adapter)
             mAdapter.releaseBitmaps();
         mAdapter = (PageAdapter) adapter;
+        if (mAdapter != null)
+            mAdapter.setDisplayedPage(mCurrent);
 
         requestLayout();
     }
@@ -918,6 +923,7 @@ public class ReaderView
     }
 
     protected void onMoveToChild(int i) {
+        mAdapter.setDisplayedPage(i);
         if (SearchTaskResult.get() != null && SearchTaskResult.get().pageNumber != i) {
             SearchTaskResult.set(null);
             resetupChildren();
@@ -0,0 +1,55 @@
+package com.artifex.mupdf.viewer;
+
+import android.graphics.Bitmap;
+
+/* A cancellable render submitted to the RenderScheduler. Cancelling aborts the
+ * task's cookie if it is running, or withdraws it if it has not started. */
+class RenderJob {
+    final CancellableTaskDefinition<Void, Boolean> task;
+    RenderScheduler.Job job;
+    private boolean finished;
+    private BitmapPool releasePool;
+    private Bitmap releaseBm;
+
+    RenderJob(CancellableTaskDefinition<Void, Boolean> task) {
+        this.task = task;
+    }
+
+    Boolean run() {
+        try {
+            return task.doInBackground();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            task.doCleanup();
+            finish();
+        }
+    }
+
+    void cancel() {
+        task.doCancel();
+        // A job withdrawn before it started never reaches run(), so clean up here
+        if (job != null && job.cancel()) {
+            task.doCleanup();
+            finish();
+        }
+    }
+
+    private synchronized void finish() {
+        finished = true;
+        if (releaseBm != null)
+            releasePool.release(releaseBm);
+        releaseBm = null;
+    }
+
+    /* Return a bitmap to the pool once this render can no longer write to it. */
+    synchronized void releaseWhenDone(BitmapPool pool, Bitmap bm) {
+        if (finished) {
+            pool.release(bm);
+        } else {
+            releasePool = pool;
+            releaseBm = bm;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.artifex.mupdf.viewer;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* One bounded worker pool per open document. Jobs are taken in priority lane
+ * order, oldest first within a lane, and a job submitted with the same key as
+ * one still waiting in the queue is merged into it. */
+public class RenderScheduler {
+    private static final String APP = "MuPDF";
+
+    public enum Priority {
+        VISIBLE,    // full render of the page on screen
+        HQ_PATCH,   // zoomed detail of the page on screen
+        PREFETCH,   // neighbouring pages
+        PAGE_SIZE,  // page size and link probes
+        SEARCH,
+        BACKGROUND  // cache writes
+    }
+
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    public final class Job implements Runnable, Comparable<Job> {
+        private final Priority priority;
+        private final Object key;
+        private final Runnable task;
+        private final long sequence;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Job(Priority priority, Object key, Runnable task) {
+            this.priority = priority;
+            this.key = key;
+            this.task = task;
+            this.sequence = sequenceCounter.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(PENDING, RUNNING))
+                return;
+            forget(this);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(APP, "render job failed: " + e);
+            } finally {
+                state.set(DONE);
+            }
+        }
+
+        /* Returns true if the job was withdrawn before it started; a job that
+         * is already running is left to finish (or abort via its cookie). */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED))
+                return false;
+            forget(this);
+            executor.remove(this);
+            return true;
+        }
+
+        public boolean isDone() {
+            int s = state.get();
+            return s == DONE || s == CANCELLED;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int c = priority.compareTo(other.priority);
+            if (c != 0)
+                return c;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final AtomicLong sequenceCounter = new AtomicLong();
+    private final Map<Object, Job> pending = new HashMap<>();
+    private final ThreadPoolExecutor executor;
+    private volatile int visiblePage;
+
+    public RenderScheduler() {
+        this(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    public RenderScheduler(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "MuPDF-render-" + threadNumber.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /* A null key disables merging. */
+    public Job submit(Priority priority, Object key, Runnable task) {
+        Job job;
+        synchronized (pending) {
+            if (key != null) {
+                Job existing = pending.get(key);
+                if (existing != null)
+                    return existing;
+            }
+            job = new Job(priority, key, task);
+            if (key != null)
+                pending.put(key, job);
+        }
+        try {
+            executor.execute(job);
+        } catch (RuntimeException e) {
+            // rejected after shutdown
+            job.cancel();
+        }
+        return job;
+    }
+
+    private void forget(Job job) {
+        if (job.key == null)
+            return;
+        synchronized (pending) {
+            if (pending.get(job.key) == job)
+                pending.remove(job.key);
+        }
+    }
+
+    /* The page the reader is looking at; its renders go in the visible lanes. */
+    public void setVisiblePage(int page) {
+        visiblePage = page;
+    }
+
+    public boolean isVisiblePage(int page) {
+        return visiblePage == page;
+    }
+
+    public void shutdown() {
+        synchronized (pending) {
+            pending.clear();
+        }
+        executor.shutdownNow();
+    }
+}
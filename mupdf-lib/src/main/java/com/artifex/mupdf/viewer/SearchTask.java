@@ -4,41 +4,154 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.os.Process;
 
 import com.artifex.mupdf.fitz.Quad;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class SearchTask {
     private final Context mContext;
     private final MuPDFCore mCore;
     private final AlertDialog.Builder mAlertBuilder;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /* Scans of the whole document run on their own threads, one per spare
+     * core, so they never hold up page renders. */
+    private static final int SCAN_WORKERS = Math.max(1, Math.min(6, Runtime.getRuntime().availableProcessors() - 1));
+    private final ThreadPoolExecutor mScanners;
+    /* How often a scan waiting for the final numbering looks for a cancel. */
+    private static final long PAGINATION_POLL = 250;
+    /* nextHitPage when the document was closed before a hit was found. */
+    private static final int CLOSED = -2;
+    private AtomicBoolean mScanCancelled;
 
     public SearchTask(Context context, MuPDFCore core) {
         mContext = context;
         mCore = core;
         mAlertBuilder = new AlertDialog.Builder(context);
+        AtomicInteger threadNumber = new AtomicInteger();
+        mScanners = new ThreadPoolExecutor(SCAN_WORKERS, SCAN_WORKERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "MuPDF-search-" + threadNumber.incrementAndGet()));
+        mScanners.allowCoreThreadTimeOut(true);
     }
 
     protected abstract void onTextFound(SearchTaskResult result);
 
+    /* A page with hits found by searchAll. */
+    protected void onHitFound(SearchTaskResult result) {
+    }
+
+    /* searchAll has looked at every page. */
+    protected void onScanDone() {
+    }
+
+    /* Look for the text on every page, spreading the pages over all scan
+     * workers, each with its own handle on the document. Pages with hits
+     * are reported as they are found, nearest to startPage first. While
+     * chapters are still being counted pages are renumbered under the scan,
+     * so it waits for the final numbering. */
+    public void searchAll(final String text, final int startPage) {
+        cancelAll();
+        if (mCore == null)
+            return;
+        final String query = TextIndex.normalize(text);
+        if (query.isEmpty())
+            return;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicInteger next = new AtomicInteger();
+        // every handle on a reflowable document holds its own layout of the whole book
+        final int workers = mCore.isReflowable() ? Math.min(2, SCAN_WORKERS) : SCAN_WORKERS;
+        final AtomicInteger running = new AtomicInteger(workers);
+        mScanCancelled = cancelled;
+
+        for (int i = 0; i < workers; i++) {
+            mScanners.execute(() -> {
+                MuPDFCore.Worker worker = null;
+                boolean tried = false;
+                try {
+                    while (!cancelled.get() && !mCore.awaitPaginated(PAGINATION_POLL))
+                        continue;
+                    final int total = mCore.countPages();
+                    final int start = Math.max(0, Math.min(startPage, total - 1));
+                    int n;
+                    while (!cancelled.get() && (n = next.getAndIncrement()) < total) {
+                        int page = (start + n) % total;
+                        TextIndex.PageText pageText = mCore.getTextIndex().get(page);
+                        if (pageText == null) {
+                            if (!tried) {
+                                worker = mCore.acquireWorker();
+                                tried = true;
+                            }
+                            // without a handle of our own, share the core's
+                            pageText = worker != null ? worker.getPageText(page) : mCore.getPageText(page);
+                        }
+                        if (pageText.contains(query)) {
+                            SearchTaskResult result = new SearchTaskResult(text, page, pageText.search(query));
+                            ((Activity) mContext).runOnUiThread(() -> {
+                                if (!cancelled.get())
+                                    onHitFound(result);
+                            });
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // shut down
+                } catch (RuntimeException e) {
+                    // the document was closed under us
+                } finally {
+                    if (worker != null)
+                        mCore.releaseWorker(worker);
+                    if (running.decrementAndGet() == 0) {
+                        ((Activity) mContext).runOnUiThread(() -> {
+                            if (!cancelled.get())
+                                onScanDone();
+                        });
+                    }
+                }
+            });
+        }
+    }
+
+    /* Stop all workers of the current searchAll. */
+    public void cancelAll() {
+        if (mScanCancelled != null)
+            mScanCancelled.set(true);
+        mScanCancelled = null;
+    }
+
+    /* Stop any scan and let the scan threads go; the task cannot scan again. */
+    public void stop() {
+        cancelAll();
+        mScanners.shutdownNow();
+    }
+
     public void search(final String text, int direction, int displayPage, int searchPage) {
         if (mCore == null)
             return;
         final int increment = direction;
         final int startIndex = searchPage == -1 ? displayPage : searchPage + increment;
-        executor.execute(() -> {
-            int index = startIndex;
+        mCore.getTextIndex().build();
+        mCore.getRenderScheduler().submit(RenderScheduler.Priority.SEARCH, null, () -> {
+            String query = TextIndex.normalize(text);
+            int index = nextHitPage(mCore.getTextIndex(), query, startIndex, increment);
+            if (index == CLOSED)
+                return;
             SearchTaskResult result = null;
-            while (0 <= index && index < mCore.countPages()) {
-                Quad[][] searchHits = mCore.searchPage(index, text);
-                if (searchHits != null && searchHits.length > 0) {
+            if (index >= 0) {
+                TextIndex.PageText pageText = mCore.getPageText(index);
+                if (pageText == null)
+                    return; // the document was closed under us
+                Quad[][] searchHits = pageText.search(query);
+                if (searchHits.length > 0)
                     result = new SearchTaskResult(text, index, searchHits);
-                    break; // exit the loop if results are found
-                }
-                index += increment;
             }
             // update UI on the main thread
             SearchTaskResult finalResult = result;
@@ -55,4 +168,31 @@ public abstract class SearchTask {
         });
     }
 
+    /* First page from start on in the given direction with a hit, -1 if
+     * there is none, or CLOSED if the document was closed during the walk.
+     * Once the index is complete this is a lookup in the list of hit pages;
+     * until then pages are extracted into the index as the walk reaches them. */
+    private int nextHitPage(TextIndex index, String query, int start, int increment) {
+        if (query.isEmpty())
+            return -1;
+        int[] pages = index.findPages(query);
+        if (pages != null) {
+            int i = Arrays.binarySearch(pages, start);
+            if (i >= 0)
+                return pages[i];
+            i = -i - 1; // first page after start
+            if (increment < 0)
+                --i;
+            return i >= 0 && i < pages.length ? pages[i] : -1;
+        }
+        for (int page = start; 0 <= page && page < mCore.countPages(); page += increment) {
+            TextIndex.PageText pageText = mCore.getPageText(page);
+            if (pageText == null)
+                return CLOSED;
+            if (pageText.contains(query))
+                return page;
+        }
+        return -1;
+    }
+
 }
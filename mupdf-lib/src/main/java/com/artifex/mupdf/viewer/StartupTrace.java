@@ -0,0 +1,48 @@
+package com.artifex.mupdf.viewer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/* Logs how long each phase of starting up takes, from the launcher or the
+ * intent that opened the document up to the first page on screen. Only one
+ * trace runs at a time; marks made while none is running are ignored. */
+public final class StartupTrace {
+    private static final String APP = "MuPDF";
+
+    private static boolean running;
+    private static long start;
+    private static long last;
+
+    private StartupTrace() {
+    }
+
+    public static synchronized void begin(String phase) {
+        running = true;
+        start = last = SystemClock.elapsedRealtime();
+        Log.i(APP, "startup: " + phase);
+    }
+
+    /* Continue the running trace, or begin one if the document was opened
+     * without going through the launcher. */
+    public static synchronized void join(String phase) {
+        if (running)
+            mark(phase);
+        else
+            begin(phase);
+    }
+
+    public static synchronized void mark(String phase) {
+        if (!running)
+            return;
+        long now = SystemClock.elapsedRealtime();
+        Log.i(APP, String.format(Locale.ROOT, "startup: %-28s +%5dms %6dms", phase, now - last, now - start));
+        last = now;
+    }
+
+    public static synchronized void end(String phase) {
+        mark(phase);
+        running = false;
+    }
+}
@@ -0,0 +1,309 @@
+package com.artifex.mupdf.viewer;
+
+import com.artifex.mupdf.fitz.Quad;
+import com.artifex.mupdf.fitz.StructuredText;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* Extracted text of every page of the document, built page by page in the
+ * background and kept for the lifetime of the layout. Searches run against
+ * the extracted text instead of reloading and searching each page in fitz.
+ *
+ * The index is invalidated by MuPDFCore while it holds the document lock.
+ * Pages may be added from any thread, tagged with the generation of the
+ * pagination they were extracted from. */
+public class TextIndex {
+    /* Pages extracted per background job, so renders get in between. */
+    private static final int BUILD_BATCH = 4;
+    private static final Object BUILD_KEY = new Object();
+
+    private final MuPDFCore core;
+    private PageText[] pages = new PageText[0];
+    private int indexed;
+    private int cursor;
+    private int generation;
+    private volatile boolean wanted;
+
+    /* Text of one page, lower cased and with white space collapsed, and the
+     * position of each character in quarter points: x extents per character
+     * and y extents per line. */
+    public static final class PageText {
+        private static final int UNITS = 4; // fixed point units per point
+        private static final short NONE = Short.MIN_VALUE;
+
+        /* Stands in for pages whose text cannot be extracted. */
+        static final PageText EMPTY = new PageText("", new short[0], new int[0], new short[0]);
+
+        final String text;
+        final short[] x;         // x0, x1 per character
+        final int[] lineStart;   // index of the first character of each line
+        final short[] lineY;     // y0, y1 per line
+
+        private PageText(String text, short[] x, int[] lineStart, short[] lineY) {
+            this.text = text;
+            this.x = x;
+            this.lineStart = lineStart;
+            this.lineY = lineY;
+        }
+
+        static PageText from(StructuredText st) {
+            Builder builder = new Builder();
+            for (StructuredText.TextBlock block : st.getBlocks()) {
+                if (block.lines == null)
+                    continue;
+                for (StructuredText.TextLine line : block.lines) {
+                    if (line.chars == null)
+                        continue;
+                    for (StructuredText.TextChar ch : line.chars) {
+                        Quad q = ch.quad;
+                        builder.add(ch.c,
+                                Math.min(Math.min(q.ul_x, q.ll_x), Math.min(q.ur_x, q.lr_x)),
+                                Math.min(Math.min(q.ul_y, q.ur_y), Math.min(q.ll_y, q.lr_y)),
+                                Math.max(Math.max(q.ul_x, q.ll_x), Math.max(q.ur_x, q.lr_x)),
+                                Math.max(Math.max(q.ul_y, q.ur_y), Math.max(q.ll_y, q.lr_y)));
+                    }
+                    builder.endLine();
+                }
+            }
+            return builder.build();
+        }
+
+        /* Collects page text a character at a time. A line is only recorded
+         * once it has text of its own, so line starts strictly increase and
+         * every character belongs to the line it was found on. */
+        static final class Builder {
+            private final StringBuilder sb = new StringBuilder();
+            private final ShortList x = new ShortList();
+            private final ArrayList<Integer> lineStart = new ArrayList<>();
+            private final ShortList lineY = new ShortList();
+            private int first = -1;
+            private float y0 = Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+
+            void add(int c, float cx0, float cy0, float cx1, float cy1) {
+                y0 = Math.min(y0, cy0);
+                y1 = Math.max(y1, cy1);
+                if (Character.isWhitespace(c)) {
+                    appendSpace(sb, x);
+                    return;
+                }
+                if (first < 0)
+                    first = sb.length();
+                int cp = fold(c);
+                for (int i = 0; i < Character.charCount(cp); i++) {
+                    x.add(fixed(cx0));
+                    x.add(fixed(cx1));
+                }
+                sb.appendCodePoint(cp);
+            }
+
+            void endLine() {
+                if (first >= 0) {
+                    lineStart.add(first);
+                    lineY.add(fixed(y0));
+                    lineY.add(fixed(y1));
+                }
+                // words continue across line breaks
+                appendSpace(sb, x);
+                first = -1;
+                y0 = Float.MAX_VALUE;
+                y1 = -Float.MAX_VALUE;
+            }
+
+            PageText build() {
+                int[] starts = new int[lineStart.size()];
+                for (int i = 0; i < starts.length; i++)
+                    starts[i] = lineStart.get(i);
+                return new PageText(sb.toString(), x.toArray(), starts, lineY.toArray());
+            }
+        }
+
+        private static void appendSpace(StringBuilder sb, ShortList x) {
+            if (sb.length() == 0 || sb.charAt(sb.length() - 1) == ' ')
+                return;
+            sb.append(' ');
+            x.add(NONE);
+            x.add(NONE);
+        }
+
+        private static short fixed(float v) {
+            return (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, Math.round(v * UNITS)));
+        }
+
+        private int lineOf(int index) {
+            int i = Arrays.binarySearch(lineStart, index);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        boolean contains(String query) {
+            return text.contains(query);
+        }
+
+        /* Quads of every hit on the page, one per line a hit spans, in the
+         * same shape Page.search returns. */
+        Quad[][] search(String query) {
+            float[][] boxes = hitBoxes(query);
+            Quad[][] hits = new Quad[boxes.length][];
+            for (int h = 0; h < boxes.length; h++) {
+                float[] b = boxes[h];
+                hits[h] = new Quad[b.length / 4];
+                for (int k = 0; k < b.length; k += 4)
+                    hits[h][k / 4] = new Quad(b[k], b[k + 1], b[k + 2], b[k + 1], b[k], b[k + 3], b[k + 2], b[k + 3]);
+            }
+            return hits;
+        }
+
+        /* x0, y0, x1, y1 of every line each hit spans, in points. */
+        float[][] hitBoxes(String query) {
+            ArrayList<float[]> hits = new ArrayList<>();
+            int at = text.indexOf(query);
+            while (at >= 0 && !query.isEmpty()) {
+                float[] boxes = new float[0];
+                int end = at + query.length();
+                int i = at;
+                while (i < end) {
+                    int line = lineOf(i);
+                    int lineEnd = line + 1 < lineStart.length ? Math.min(end, lineStart[line + 1]) : end;
+                    // always take at least one character, so the span moves on
+                    lineEnd = Math.max(lineEnd, i + 1);
+                    int x0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE;
+                    for (; i < lineEnd; i++) {
+                        if (x[2 * i] == NONE)
+                            continue;
+                        x0 = Math.min(x0, x[2 * i]);
+                        x1 = Math.max(x1, x[2 * i + 1]);
+                    }
+                    if (line >= 0 && x0 <= x1) {
+                        int n = boxes.length;
+                        boxes = Arrays.copyOf(boxes, n + 4);
+                        boxes[n] = (float) x0 / UNITS;
+                        boxes[n + 1] = (float) lineY[2 * line] / UNITS;
+                        boxes[n + 2] = (float) x1 / UNITS;
+                        boxes[n + 3] = (float) lineY[2 * line + 1] / UNITS;
+                    }
+                }
+                if (boxes.length > 0)
+                    hits.add(boxes);
+                at = text.indexOf(query, at + 1);
+            }
+            return hits.toArray(new float[0][]);
+        }
+    }
+
+    private static final class ShortList {
+        private short[] a = new short[256];
+        private int n;
+
+        void add(short v) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        short[] toArray() {
+            return Arrays.copyOf(a, n);
+        }
+    }
+
+    TextIndex(MuPDFCore core) {
+        this.core = core;
+    }
+
+    /* Lower case a character alike in page text and queries. One code point
+     * gives one, so page text stays aligned with its character positions. */
+    static int fold(int cp) {
+        return Character.toLowerCase(cp);
+    }
+
+    /* Queries match lower cased text with white space collapsed, as page
+     * text is extracted. */
+    public static String normalize(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        for (int i = 0; i < query.length(); ) {
+            int cp = query.codePointAt(i);
+            i += Character.charCount(cp);
+            if (!Character.isWhitespace(cp))
+                sb.appendCodePoint(fold(cp));
+            else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+                sb.append(' ');
+        }
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ')
+            sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    public synchronized PageText get(int page) {
+        return page >= 0 && page < pages.length ? pages[page] : null;
+    }
+
+    /* Text extracted for an older pagination is dropped. */
+    synchronized void put(int generation, int page, PageText text) {
+        if (generation != this.generation || page < 0 || page >= pages.length || pages[page] != null)
+            return;
+        pages[page] = text;
+        ++indexed;
+    }
+
+    /* Called by MuPDFCore with the document lock held when the pagination changes. */
+    synchronized void reset(int pageCount) {
+        pages = new PageText[pageCount];
+        indexed = 0;
+        cursor = 0;
+        ++generation;
+    }
+
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    public synchronized boolean isComplete() {
+        return indexed == pages.length;
+    }
+
+    public synchronized int getIndexedCount() {
+        return indexed;
+    }
+
+    /* All pages with a hit, in page order, or null while the index is
+     * still being built. */
+    public synchronized int[] findPages(String query) {
+        if (indexed != pages.length)
+            return null;
+        int[] found = new int[pages.length];
+        int n = 0;
+        for (int i = 0; i < pages.length; i++)
+            if (pages[i].contains(query))
+                found[n++] = i;
+        return Arrays.copyOf(found, n);
+    }
+
+    private synchronized int nextMissing() {
+        while (cursor < pages.length && pages[cursor] != null)
+            ++cursor;
+        return cursor < pages.length ? cursor : -1;
+    }
+
+    /* Start, or resume, extracting the remaining pages in the background.
+     * Page numbers are not settled while a layout is still counting pages,
+     * so the build waits for it to finish. */
+    public void build() {
+        wanted = true;
+        if (!core.isPaginated() || isComplete())
+            return;
+        core.getRenderScheduler().submit(RenderScheduler.Priority.SEARCH, BUILD_KEY, () -> {
+            for (int i = 0; i < BUILD_BATCH; i++) {
+                int page = nextMissing();
+                if (page < 0)
+                    return;
+                core.getPageText(page);
+            }
+            build();
+        });
+    }
+
+    /* Called by MuPDFCore once every page has been counted. */
+    void resume() {
+        if (wanted)
+            build();
+    }
+}
@@ -0,0 +1,48 @@
+package com.artifex.mupdf.viewer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/* What was known about the last document read when it was put away, so
+ * that reopening it can show its last page straight from the render cache
+ * while the document itself is checked and opened in the background. */
+final class WarmStart {
+    private static final String PREFS = "warmStart";
+
+    final String uri;
+    final String fingerprint;
+    final int pageCount;
+    final int page;
+    final String renderKey;
+
+    WarmStart(String uri, String fingerprint, int pageCount, int page, String renderKey) {
+        this.uri = uri;
+        this.fingerprint = fingerprint;
+        this.pageCount = pageCount;
+        this.page = page;
+        this.renderKey = renderKey;
+    }
+
+    /* The record for a uri, or null if another document was read last. */
+    static WarmStart load(Context context, String uri) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (uri == null || !uri.equals(prefs.getString("uri", null)))
+            return null;
+        return new WarmStart(uri,
+                prefs.getString("fingerprint", null),
+                prefs.getInt("pageCount", 0),
+                prefs.getInt("page", 0),
+                prefs.getString("renderKey", null));
+    }
+
+    void save(Context context) {
+        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .clear()
+                .putString("uri", uri)
+                .putString("fingerprint", fingerprint)
+                .putInt("pageCount", pageCount)
+                .putInt("page", page)
+                .putString("renderKey", renderKey)
+                .apply();
+    }
+}
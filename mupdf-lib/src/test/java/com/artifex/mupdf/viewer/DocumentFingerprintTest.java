@@ -0,0 +1,76 @@
+package com.artifex.mupdf.viewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+public class DocumentFingerprintTest {
+    private static byte[] content(int length, long seed) {
+        byte[] buf = new byte[length];
+        new Random(seed).nextBytes(buf);
+        return buf;
+    }
+
+    @Test
+    public void isHexSha1() {
+        String fp = DocumentFingerprint.of(content(100, 1), 100, 100);
+        assertEquals(40, fp.length());
+        assertTrue(fp.matches("[0-9a-f]+"));
+    }
+
+    @Test
+    public void sameContentSameFingerprint() {
+        byte[] a = content(1000, 1);
+        assertEquals(DocumentFingerprint.of(a, a.length, a.length), DocumentFingerprint.of(a.clone(), a.length, a.length));
+    }
+
+    @Test
+    public void sizeIsPartOfTheFingerprint() {
+        byte[] a = content(1000, 1);
+        assertNotEquals(DocumentFingerprint.of(a, a.length, a.length), DocumentFingerprint.of(a, a.length, a.length + 1));
+    }
+
+    @Test
+    public void headIsPartOfTheFingerprint() {
+        byte[] a = content(1000, 1);
+        byte[] b = a.clone();
+        b[500] ^= 1;
+        assertNotEquals(DocumentFingerprint.of(a, a.length, a.length), DocumentFingerprint.of(b, b.length, b.length));
+    }
+
+    @Test
+    public void onlyTheHeadIsHashed() {
+        int length = DocumentFingerprint.HEAD_BYTES + 1000;
+        byte[] a = content(length, 1);
+        byte[] b = a.clone();
+        b[DocumentFingerprint.HEAD_BYTES + 10] ^= 1;
+        assertEquals(DocumentFingerprint.of(a, length, length), DocumentFingerprint.of(b, length, length));
+        assertEquals(DocumentFingerprint.of(a, length, length),
+                DocumentFingerprint.of(a, DocumentFingerprint.HEAD_BYTES, length));
+    }
+
+    @Test
+    public void fileMatchesBuffer() throws IOException {
+        byte[] a = content(DocumentFingerprint.HEAD_BYTES * 2 + 17, 2);
+        File file = File.createTempFile("fingerprint", ".bin");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(a);
+            }
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                assertEquals(DocumentFingerprint.of(a, a.length, a.length), DocumentFingerprint.of(channel));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.artifex.mupdf.viewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PageCacheTest {
+    private static final long PAGE = 32 * 1024;
+
+    private static final class TestEntry extends PageCache.Entry {
+        boolean destroyed;
+
+        TestEntry(int generation, int page) {
+            super(generation, PageCache.id(0, page), 100, 100);
+        }
+
+        @Override
+        void destroy() {
+            destroyed = true;
+            super.destroy();
+        }
+    }
+
+    @Test
+    public void getMatchesGeneration() {
+        PageCache cache = new PageCache(10 * PAGE, 1);
+        TestEntry e = new TestEntry(1, 0);
+        cache.put(e);
+        assertSame(e, cache.get(1, e.id));
+        assertNull(cache.get(2, e.id));
+        assertNull(cache.get(1, PageCache.id(0, 1)));
+    }
+
+    @Test
+    public void idKeepsChapterAndPageApart() {
+        assertFalse(PageCache.id(1, 0) == PageCache.id(0, 1));
+        assertFalse(PageCache.id(0, -1) == PageCache.id(-1, 0));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        PageCache cache = new PageCache(3 * PAGE, 1);
+        TestEntry e0 = new TestEntry(0, 0);
+        TestEntry e1 = new TestEntry(0, 1);
+        TestEntry e2 = new TestEntry(0, 2);
+        cache.put(e0);
+        cache.put(e1);
+        cache.put(e2);
+        assertEquals(3, cache.size());
+
+        // touching the oldest makes the next one the least recently used
+        assertSame(e0, cache.get(0, e0.id));
+        TestEntry e3 = new TestEntry(0, 3);
+        cache.put(e3);
+        assertEquals(3, cache.size());
+        assertTrue(e1.destroyed);
+        assertNull(cache.get(0, e1.id));
+        assertFalse(e0.destroyed);
+        assertFalse(e2.destroyed);
+        assertEquals(3 * PAGE, cache.usedBytes());
+    }
+
+    @Test
+    public void keepsMinimumEntriesOverBudget() {
+        PageCache cache = new PageCache(1, 3);
+        TestEntry[] entries = new TestEntry[4];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new TestEntry(0, i);
+            cache.put(entries[i]);
+        }
+        assertEquals(3, cache.size());
+        assertTrue(entries[0].destroyed);
+        assertFalse(entries[3].destroyed);
+    }
+
+    @Test
+    public void displayListChargeTrimsOthers() {
+        PageCache cache = new PageCache(200 * 1024, 1);
+        TestEntry e0 = new TestEntry(0, 0);
+        TestEntry e1 = new TestEntry(0, 1);
+        cache.put(e0);
+        cache.put(e1);
+        cache.setDisplayList(e1, null);
+        assertEquals(2, cache.size());
+        long listed = e1.bytes;
+        assertTrue(listed > PAGE);
+        assertEquals(PAGE + listed, cache.usedBytes());
+
+        // the entry just charged is kept even though it is the oldest
+        cache.setDisplayList(e0, null);
+        assertEquals(1, cache.size());
+        assertTrue(e1.destroyed);
+        assertFalse(e0.destroyed);
+        assertEquals(listed, cache.usedBytes());
+    }
+
+    @Test
+    public void replacingDestroysOldEntry() {
+        PageCache cache = new PageCache(10 * PAGE, 1);
+        TestEntry old = new TestEntry(0, 0);
+        TestEntry replacement = new TestEntry(1, 0);
+        cache.put(old);
+        cache.put(replacement);
+        assertTrue(old.destroyed);
+        assertEquals(1, cache.size());
+        assertEquals(PAGE, cache.usedBytes());
+        assertSame(replacement, cache.get(1, old.id));
+    }
+
+    @Test
+    public void clearDestroysEverything() {
+        PageCache cache = new PageCache(10 * PAGE, 1);
+        TestEntry e0 = new TestEntry(0, 0);
+        TestEntry e1 = new TestEntry(0, 1);
+        cache.put(e0);
+        cache.put(e1);
+        cache.clear();
+        assertTrue(e0.destroyed);
+        assertTrue(e1.destroyed);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.usedBytes());
+    }
+}
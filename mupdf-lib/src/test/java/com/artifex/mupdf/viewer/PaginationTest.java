@@ -0,0 +1,123 @@
+package com.artifex.mupdf.viewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.artifex.mupdf.fitz.Location;
+
+import org.junit.Test;
+
+public class PaginationTest {
+    private static void assertLocation(int chapter, int page, Location loc) {
+        assertEquals("chapter", chapter, loc.chapter);
+        assertEquals("page", page, loc.page);
+    }
+
+    @Test
+    public void numbersOnEstimates() {
+        Pagination p = new Pagination(new int[]{3, 3, 3}, 1);
+        assertEquals(9, p.countPages());
+        assertEquals(3, p.toPageNumber(1, 0));
+        assertLocation(1, 1, p.toLocation(4));
+        assertFalse(p.isCounted(0));
+        assertFalse(p.isComplete());
+        assertArrayEquals(new int[]{-1, -1, -1}, p.getCounts());
+    }
+
+    @Test
+    public void countsFromTheAnchorOnRenumber() {
+        Pagination p = new Pagination(new int[]{3, 3, 3}, 1);
+        p.setCount(1, 2);
+        p.setCount(2, 5);
+        assertEquals(10, p.countPages());
+        assertEquals(5, p.toPageNumber(2, 0));
+        assertLocation(2, 4, p.toLocation(9));
+    }
+
+    @Test
+    public void countsBeforeTheAnchorWaitForFinish() {
+        Pagination p = new Pagination(new int[]{3, 3, 3}, 1);
+        p.setCount(1, 3);
+        p.setCount(2, 3);
+        p.setCount(0, 1);
+        assertTrue(p.isComplete());
+        assertFalse(p.isFinal());
+        // the anchor chapter keeps its number; pages past the real end land on the last page
+        assertEquals(3, p.toPageNumber(1, 0));
+        assertLocation(0, 0, p.toLocation(2));
+
+        Pagination finished = p.finish();
+        assertTrue(finished.isFinal());
+        assertEquals(7, finished.countPages());
+        assertEquals(1, finished.toPageNumber(1, 0));
+        assertLocation(1, 0, finished.toLocation(1));
+    }
+
+    @Test
+    public void emptyChapterBeforeTheAnchor() {
+        Pagination p = new Pagination(new int[]{2, 2, 3}, 2);
+        p.setCount(2, 3);
+        p.setCount(0, 0);
+        // still numbered on its estimate, but it has no page to show
+        assertEquals(7, p.countPages());
+        assertLocation(1, 0, p.toLocation(0));
+        assertLocation(1, 0, p.toLocation(1));
+        assertLocation(1, 0, p.toLocation(2));
+        p.setCount(1, 2);
+        assertLocation(1, 1, p.toLocation(3));
+
+        Pagination finished = p.finish();
+        assertEquals(5, finished.countPages());
+        assertLocation(1, 0, finished.toLocation(0));
+        assertLocation(2, 0, finished.toLocation(2));
+        assertEquals(0, finished.toPageNumber(0, 0));
+    }
+
+    @Test
+    public void emptyChapterFromTheAnchorOn() {
+        Pagination p = new Pagination(new int[]{2, 2, 2}, 0);
+        p.setCount(0, 2);
+        p.setCount(1, 0);
+        assertEquals(4, p.countPages());
+        assertLocation(2, 0, p.toLocation(2));
+        assertEquals(2, p.toPageNumber(1, 0));
+    }
+
+    @Test
+    public void toPageNumberClamps() {
+        Pagination p = Pagination.of(new int[]{2, 3});
+        assertEquals(0, p.toPageNumber(-1, 5));
+        assertEquals(4, p.toPageNumber(2, 0));
+        assertEquals(1, p.toPageNumber(0, 10));
+        assertLocation(1, 2, p.toLocation(100));
+        assertLocation(0, 0, p.toLocation(-3));
+    }
+
+    @Test
+    public void firstDifference() {
+        Pagination p = new Pagination(new int[]{3, 3, 3}, 1);
+        Pagination before = p.copy();
+        assertEquals(-1, p.firstDifference(before));
+
+        p.setCount(1, 3);
+        assertEquals(-1, p.firstDifference(before));
+
+        p.setCount(2, 1);
+        assertEquals(7, p.firstDifference(before));
+        assertEquals(7, before.firstDifference(p));
+        // the copy did not change with the count
+        assertEquals(9, before.countPages());
+
+        // a chapter before the anchor found shorter than its estimate
+        before = p.copy();
+        p.setCount(0, 1);
+        assertEquals(1, p.firstDifference(before));
+
+        // finishing renumbers from the first page past the short chapter
+        before = p.copy();
+        assertEquals(1, p.finish().firstDifference(before));
+        assertEquals(0, p.firstDifference(Pagination.of(new int[]{3, 3})));
+    }
+}
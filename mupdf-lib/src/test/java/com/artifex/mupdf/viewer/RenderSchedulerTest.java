@@ -0,0 +1,121 @@
+package com.artifex.mupdf.viewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RenderSchedulerTest {
+    private static final long TIMEOUT = 5;
+
+    /* Holds the only worker thread until released, so later jobs queue up. */
+    private static CountDownLatch block(RenderScheduler scheduler) throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(RenderScheduler.Priority.VISIBLE, null, () -> {
+            running.countDown();
+            try {
+                release.await(TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(running.await(TIMEOUT, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static Runnable record(final List<String> order, final String name, final CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    @Test
+    public void runsLanesInPriorityOrder() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1);
+        try {
+            CountDownLatch release = block(scheduler);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(7);
+            scheduler.submit(RenderScheduler.Priority.BACKGROUND, null, record(order, "background", done));
+            scheduler.submit(RenderScheduler.Priority.SEARCH, null, record(order, "search", done));
+            scheduler.submit(RenderScheduler.Priority.PREFETCH, null, record(order, "prefetch 1", done));
+            scheduler.submit(RenderScheduler.Priority.PAGE_SIZE, null, record(order, "page size", done));
+            scheduler.submit(RenderScheduler.Priority.VISIBLE, null, record(order, "visible", done));
+            scheduler.submit(RenderScheduler.Priority.PREFETCH, null, record(order, "prefetch 2", done));
+            scheduler.submit(RenderScheduler.Priority.HQ_PATCH, null, record(order, "hq patch", done));
+            release.countDown();
+            assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+            // oldest first within a lane
+            assertEquals(Arrays.asList("visible", "hq patch", "prefetch 1", "prefetch 2", "page size", "search", "background"),
+                    new ArrayList<>(order));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void mergesJobsWithTheSameKey() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1);
+        try {
+            CountDownLatch release = block(scheduler);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(2);
+            RenderScheduler.Job first = scheduler.submit(RenderScheduler.Priority.PREFETCH, "key", record(order, "first", done));
+            RenderScheduler.Job second = scheduler.submit(RenderScheduler.Priority.PREFETCH, "key", record(order, "second", done));
+            assertSame(first, second);
+            scheduler.submit(RenderScheduler.Priority.BACKGROUND, null, record(order, "last", done));
+            release.countDown();
+            assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("first", "last"), new ArrayList<>(order));
+
+            // once the merged job has run, the key is free again
+            CountDownLatch again = new CountDownLatch(1);
+            RenderScheduler.Job third = scheduler.submit(RenderScheduler.Priority.PREFETCH, "key", again::countDown);
+            assertNotSame(first, third);
+            assertTrue(again.await(TIMEOUT, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void cancelWithdrawsOnlyWaitingJobs() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1);
+        try {
+            CountDownLatch release = block(scheduler);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(1);
+            RenderScheduler.Job cancelled = scheduler.submit(RenderScheduler.Priority.VISIBLE, "key", record(order, "cancelled", done));
+            scheduler.submit(RenderScheduler.Priority.BACKGROUND, null, record(order, "kept", done));
+            assertTrue(cancelled.cancel());
+            assertTrue(cancelled.isDone());
+            assertFalse(cancelled.cancel());
+            release.countDown();
+            assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("kept"), new ArrayList<>(order));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void jobsAfterShutdownAreCancelled() {
+        RenderScheduler scheduler = new RenderScheduler(1);
+        scheduler.shutdown();
+        RenderScheduler.Job job = scheduler.submit(RenderScheduler.Priority.VISIBLE, null, () -> {
+        });
+        assertTrue(job.isDone());
+    }
+}
@@ -0,0 +1,81 @@
+package com.artifex.mupdf.viewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TextIndexTest {
+    /* Page text with each character 10 points wide and each line 20 points
+     * high, a line per string. */
+    private static TextIndex.PageText page(String... lines) {
+        TextIndex.PageText.Builder builder = new TextIndex.PageText.Builder();
+        for (int line = 0; line < lines.length; line++) {
+            String s = lines[line];
+            for (int i = 0; i < s.length(); i++)
+                builder.add(s.charAt(i), i * 10, line * 20, i * 10 + 10, line * 20 + 20);
+            builder.endLine();
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void findsHitsAcrossLines() {
+        TextIndex.PageText text = page("Hello world", "second line");
+        assertEquals("hello world second line ", text.text);
+        float[][] hits = text.hitBoxes("world second");
+        assertEquals(1, hits.length);
+        assertArrayEquals(new float[]{60, 0, 110, 20, 0, 20, 60, 40}, hits[0], 0);
+        assertEquals(3, text.hitBoxes("o").length);
+    }
+
+    @Test(timeout = 5000)
+    public void skipsLinesWithoutText() {
+        TextIndex.PageText text = page("hello world", " ", "second line");
+        assertArrayEquals(new int[]{0, 12}, text.lineStart);
+        float[][] hits = text.hitBoxes("second");
+        assertEquals(1, hits.length);
+        assertArrayEquals(new float[]{0, 40, 60, 60}, hits[0], 0);
+
+        text = page(" ", "first", " ", "second");
+        assertArrayEquals(new int[]{0, 6}, text.lineStart);
+        assertArrayEquals(new float[]{0, 20, 50, 40}, text.hitBoxes("first")[0], 0);
+        assertArrayEquals(new float[]{0, 60, 60, 80}, text.hitBoxes("second")[0], 0);
+
+        text = page("alpha", " ", " ", "beta");
+        assertArrayEquals(new float[]{0, 60, 40, 80}, text.hitBoxes("beta")[0], 0);
+        assertArrayEquals(new float[]{0, 0, 50, 20, 0, 60, 10, 80}, text.hitBoxes("alpha b")[0], 0);
+    }
+
+    @Test
+    public void collapsesAndTrimsWhiteSpace() {
+        assertEquals("hello world", TextIndex.normalize("  hello \t\n world  "));
+        assertEquals("a b", TextIndex.normalize("a\u2003\u2003b"));
+        assertEquals("", TextIndex.normalize(" \t\n "));
+        assertEquals("", TextIndex.normalize(""));
+    }
+
+    @Test
+    public void keepsWhatPageTextKeeps() {
+        // page text only breaks on Character.isWhitespace, which a no-break space is not
+        assertEquals("a\u00a0b", TextIndex.normalize("a\u00a0b"));
+    }
+
+    @Test
+    public void lowerCasesLikePageText() {
+        assertEquals("hello", TextIndex.normalize("HeLLo"));
+        // one code point each, as page text is folded, where String.toLowerCase gives two
+        assertEquals("i", TextIndex.normalize("\u0130"));
+        assertEquals(new String(Character.toChars(0x10428)), TextIndex.normalize(new String(Character.toChars(0x10400))));
+    }
+
+    @Test
+    public void foldingKeepsOneCodePoint() {
+        for (int cp = 0; cp <= Character.MAX_CODE_POINT; cp++) {
+            if (Character.isWhitespace(cp) || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+                continue;
+            String s = new String(Character.toChars(cp));
+            assertEquals(new String(Character.toChars(TextIndex.fold(cp))), TextIndex.normalize(s));
+        }
+    }
+}